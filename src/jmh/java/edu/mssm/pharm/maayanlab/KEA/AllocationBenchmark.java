@@ -0,0 +1,83 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Garbage per query, read from gc.alloc.rate.norm (bytes per operation) of the
+ * gc profiler the jmh task runs with. Queries mostly ask for the top ranked
+ * kinases or the names only, writing a full result materializes every hit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AllocationBenchmark {
+	
+	@Param({SyntheticBackground.ARCHS4, SyntheticBackground.BOTH_TYPES})
+	public String library;
+	
+	@Param({"10", "300", "3000"})
+	public int inputSize;
+	
+	@Param({KEA.PVALUE, KEA.COMBINED_SCORE})
+	public String sortBy;
+	
+	private final static int TOP_RANKS = 10;
+	
+	private BackgroundLibrary background;
+	private ArrayList<String> genes;
+	private EnrichmentEngine engine;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		SyntheticBackground synthetic = SyntheticBackground.forLibrary(library);
+		background = BackgroundLibrary.parse(library, KEA.KINASE_LEVEL, synthetic.records());
+		genes = synthetic.geneList(inputSize, inputSize);
+		engine = new EnrichmentEngine(sortBy);
+		// Generate the ranks for the combined score once, outside of the measurement
+		background.getRanks();
+		BackgroundCache.getLogFactorials().ensureCapacity(2 * background.getUniverseSize());
+	}
+	
+	@Benchmark
+	public List<Kinase> topRanked() {
+		return engine.enrich(background, genes).getTopRanked(TOP_RANKS);
+	}
+	
+	@Benchmark
+	public List<String> topRankedNames() {
+		return engine.enrich(background, genes).getTopRankedList(TOP_RANKS);
+	}
+	
+	@Benchmark
+	public void writeResult() throws IOException {
+		try (ResultWriter writer = new ResultWriter(new NullOutputStream(), ResultWriter.Format.CSV, false)) {
+			writer.write(engine.enrich(background, genes));
+		}
+	}
+	
+	// Leaves the writer as the only source of output garbage
+	private static final class NullOutputStream extends OutputStream {
+		
+		@Override
+		public void write(int b) {
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
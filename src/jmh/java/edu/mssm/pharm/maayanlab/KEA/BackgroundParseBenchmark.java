@@ -0,0 +1,82 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.mssm.pharm.maayanlab.common.core.FileUtils;
+
+// Cost of turning a background file into a BackgroundLibrary
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BackgroundParseBenchmark {
+
+	@Param({SyntheticBackground.KEA_2018, SyntheticBackground.ARCHS4, SyntheticBackground.IPTMNET, SyntheticBackground.PHOSPHOPLUS, SyntheticBackground.BOTH_TYPES})
+	public String library;
+	
+	@Param({KEA.KINASE_LEVEL, KEA.KINASE_FAMILY_LEVEL, KEA.KINASE_GROUP_LEVEL})
+	public String level;
+	
+	private File file;
+	private File snapshot;
+	private ArrayList<String> records;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = File.createTempFile("kea-" + library, ".csv");
+		SyntheticBackground.forLibrary(library).write(file);
+		records = FileUtils.readFile(file.getAbsolutePath());
+		snapshot = File.createTempFile("kea-" + library, LibrarySnapshot.EXTENSION);
+		LibrarySnapshot.compile(records).write(snapshot);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		file.delete();
+		snapshot.delete();
+	}
+	
+	@Benchmark
+	public ArrayList<String> readFile() {
+		return FileUtils.readFile(file.getAbsolutePath());
+	}
+	
+	@Benchmark
+	public void splitRecords(Blackhole blackhole) {
+		int column = BackgroundLibrary.levelColumn(level);
+		for (String record : records) {
+			String[] splitRecord = record.split(",");
+			blackhole.consume(splitRecord[column]);
+			blackhole.consume(splitRecord[3]);
+		}
+	}
+	
+	@Benchmark
+	public BackgroundLibrary parse() {
+		return BackgroundLibrary.parse(library, level, records);
+	}
+	
+	@Benchmark
+	public BackgroundLibrary readAndParse() {
+		return BackgroundLibrary.parse(library, level, FileUtils.readFile(file.getAbsolutePath()));
+	}
+	
+	@Benchmark
+	public BackgroundLibrary loadSnapshot() throws IOException {
+		return LibrarySnapshot.read(snapshot).toIndex(library).getLibrary(level);
+	}
+}
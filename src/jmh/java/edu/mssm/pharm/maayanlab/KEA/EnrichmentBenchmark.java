@@ -0,0 +1,67 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Per-query enrichment against an already parsed background
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EnrichmentBenchmark {
+
+	@Param({SyntheticBackground.KEA_2018, SyntheticBackground.ARCHS4, SyntheticBackground.IPTMNET, SyntheticBackground.PHOSPHOPLUS, SyntheticBackground.BOTH_TYPES})
+	public String library;
+	
+	@Param({KEA.KINASE_LEVEL, KEA.KINASE_FAMILY_LEVEL, KEA.KINASE_GROUP_LEVEL})
+	public String level;
+	
+	@Param({"10", "300", "3000"})
+	public int inputSize;
+	
+	@Param({KEA.PVALUE, KEA.COMBINED_SCORE})
+	public String sortBy;
+	
+	private final static int TOP_RANKS = 10;
+	
+	private BackgroundLibrary background;
+	private ArrayList<String> genes;
+	private EnrichmentEngine engine;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		SyntheticBackground synthetic = SyntheticBackground.forLibrary(library);
+		background = BackgroundLibrary.parse(library, level, synthetic.records());
+		genes = synthetic.geneList(inputSize, inputSize);
+		engine = new EnrichmentEngine(sortBy);
+		// Generate the ranks for the combined score once, outside of the measurement
+		background.getRanks();
+		// Exclude the one-off growth of the shared log-factorial table
+		BackgroundCache.getLogFactorials().ensureCapacity(2 * background.getUniverseSize());
+	}
+	
+	@Benchmark
+	public EnrichmentResult computeEnrichment() {
+		return engine.enrich(background, genes);
+	}
+	
+	@Benchmark
+	public List<Kinase> topRanked() {
+		return engine.enrich(background, genes).getTopRanked(TOP_RANKS);
+	}
+	
+	@Benchmark
+	public List<Kinase> fullRanking() {
+		return engine.enrich(background, genes).getRankedKinases();
+	}
+}
@@ -0,0 +1,84 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Overlap of one kinase with one input list by every kernel, over the density
+ * of both. The bitset AND costs the same for every size, the sorted kernels
+ * grow with the sizes, so the crossover where BackgroundLibrary.overlap()
+ * switches to the bitset shows up along kinaseSize and inputSize. The cost
+ * constants of SortedIntersection are read off these numbers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IntersectionBenchmark {
+	
+	// Universe of the ARCHS4 library
+	@Param({"15000"})
+	public int universe;
+	
+	@Param({"10", "50", "250", "1000"})
+	public int kinaseSize;
+	
+	@Param({"30", "300", "3000"})
+	public int inputSize;
+	
+	private long[] kinaseBits;
+	private long[] inputBits;
+	private int[] kinaseIds;
+	private int[] inputIds;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(kinaseSize * 31 + inputSize);
+		kinaseBits = randomSet(random, kinaseSize);
+		inputBits = randomSet(random, inputSize);
+		kinaseIds = BackgroundLibrary.toIds(kinaseBits, BackgroundLibrary.cardinality(kinaseBits));
+		inputIds = BackgroundLibrary.toIds(inputBits, BackgroundLibrary.cardinality(inputBits));
+	}
+	
+	private long[] randomSet(Random random, int size) {
+		long[] bits = new long[BackgroundLibrary.wordsFor(universe)];
+		for (int i = 0; i < size; i++)
+			BackgroundLibrary.set(bits, random.nextInt(universe));
+		return bits;
+	}
+	
+	@Benchmark
+	public int bitset() {
+		int count = 0;
+		for (int i = 0; i < kinaseBits.length; i++)
+			count += Long.bitCount(kinaseBits[i] & inputBits[i]);
+		return count;
+	}
+	
+	@Benchmark
+	public int merge() {
+		return SortedIntersection.merge(kinaseIds, inputIds);
+	}
+	
+	@Benchmark
+	public int gallop() {
+		return kinaseIds.length < inputIds.length ? SortedIntersection.gallop(kinaseIds, inputIds) : SortedIntersection.gallop(inputIds, kinaseIds);
+	}
+	
+	// The choice BackgroundLibrary.overlap() makes
+	@Benchmark
+	public int adaptive() {
+		if (SortedIntersection.cost(kinaseIds.length, inputIds.length) < kinaseBits.length)
+			return SortedIntersection.size(kinaseIds, inputIds);
+		return bitset();
+	}
+}
@@ -0,0 +1,51 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Sorting of scored kinases, separated from the statistics
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RankingBenchmark {
+
+	@Param({"50", "500", "5000"})
+	public int kinaseCount;
+	
+	@Param({KEA.PVALUE, KEA.RANK, KEA.COMBINED_SCORE})
+	public String sortBy;
+	
+	private ArrayList<Kinase> scored;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(kinaseCount);
+		scored = new ArrayList<Kinase>(kinaseCount);
+		for (int i = 0; i < kinaseCount; i++) {
+			Kinase kinase = new Kinase("KINASE" + i, "GENE" + i);
+			kinase.setPValue(random.nextDouble());
+			kinase.setRankStats(random.nextDouble() * kinaseCount, 1 + random.nextDouble() * 10);
+			kinase.computeScore(1 + random.nextInt(kinaseCount));
+			scored.add(kinase);
+		}
+	}
+	
+	@Benchmark
+	public LinkedList<Kinase> rank() {
+		LinkedList<Kinase> kinases = new LinkedList<Kinase>(scored);
+		EnrichmentEngine.rank(kinases, sortBy);
+		return kinases;
+	}
+}
@@ -0,0 +1,91 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Random;
+
+/*
+ * Generates background databases shaped like the real libraries under res/
+ * (group,family,kinase,substrate records) so that the benchmarks run offline
+ * and reproducibly. Sizes are rough counts of kinases, substrates and
+ * interactions of each library.
+ */
+public class SyntheticBackground {
+
+	public final static String KEA_2018 = "KEA_2018";
+	public final static String ARCHS4 = "ARCHS4";
+	public final static String IPTMNET = "iPTMnet";
+	public final static String PHOSPHOPLUS = "PhosphoPlus";
+	public final static String BOTH_TYPES = "both_types";
+	
+	private final static int GROUPS = 10;
+	private final static int KINASES_PER_FAMILY = 4;
+	
+	private final int kinases;
+	private final int substrates;
+	private final int interactions;
+	private final long seed;
+	
+	public SyntheticBackground(int kinases, int substrates, int interactions, long seed) {
+		this.kinases = kinases;
+		this.substrates = substrates;
+		this.interactions = interactions;
+		this.seed = seed;
+	}
+	
+	public static SyntheticBackground forLibrary(String library) {
+		if (library.equals(KEA_2018))
+			return new SyntheticBackground(430, 3500, 12000, 2018);
+		else if (library.equals(ARCHS4))
+			return new SyntheticBackground(520, 15000, 156000, 4);
+		else if (library.equals(IPTMNET))
+			return new SyntheticBackground(400, 4800, 13000, 7);
+		else if (library.equals(PHOSPHOPLUS))
+			return new SyntheticBackground(350, 2600, 9000, 11);
+		else
+			return new SyntheticBackground(800, 11000, 60000, 1);
+	}
+	
+	public ArrayList<String> records() {
+		Random random = new Random(seed);
+		ArrayList<String> records = new ArrayList<String>(interactions);
+		for (int i = 0; i < interactions; i++) {
+			// Skew kinase sizes so that a few kinases have many substrates like in the real libraries
+			int kinase = (int) (kinases * Math.pow(random.nextDouble(), 2));
+			int family = kinase / KINASES_PER_FAMILY;
+			int group = family % GROUPS;
+			records.add("GROUP" + group + ",FAMILY" + family + ",KINASE" + kinase + "," + substrate(random.nextInt(substrates)));
+		}
+		return records;
+	}
+	
+	public File write(File file) throws IOException {
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+		try {
+			for (String record : records())
+				out.println(record);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+	
+	// Random input list drawn from the substrates plus a few genes outside of the background
+	public ArrayList<String> geneList(int size, long seed) {
+		Random random = new Random(seed);
+		ArrayList<String> genes = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			if (i % 10 == 9)
+				genes.add("UNKNOWN" + random.nextInt(substrates));
+			else
+				genes.add(substrate(random.nextInt(substrates)));
+		}
+		return genes;
+	}
+	
+	private static String substrate(int id) {
+		return "GENE" + id;
+	}
+}
@@ -0,0 +1,68 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import edu.mssm.pharm.maayanlab.common.core.FileUtils;
+
+// Serialization of a ranked result through FileUtils and through the streaming ResultWriter
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WriteFileBenchmark {
+
+	@Param({SyntheticBackground.KEA_2018, SyntheticBackground.ARCHS4})
+	public String library;
+	
+	@Param({"300", "3000"})
+	public int inputSize;
+	
+	@Param({"CSV", "TSV", "JSON"})
+	public ResultWriter.Format format;
+	
+	private EnrichmentResult result;
+	private List<Kinase> kinases;
+	private String header;
+	private File file;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		SyntheticBackground synthetic = SyntheticBackground.forLibrary(library);
+		BackgroundLibrary background = BackgroundLibrary.parse(library, KEA.KINASE_LEVEL, synthetic.records());
+		result = new EnrichmentEngine(KEA.PVALUE).enrich(background, synthetic.geneList(inputSize, inputSize));
+		kinases = result.getRankedKinases();
+		header = new KEA().HEADER;
+		file = File.createTempFile("kea-results", ".csv");
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		file.delete();
+	}
+	
+	@Benchmark
+	public void writeFile() {
+		FileUtils.writeFile(file.getAbsolutePath(), header, kinases);
+	}
+	
+	@Benchmark
+	public void resultWriter() throws IOException {
+		try (ResultWriter writer = new ResultWriter(new FileOutputStream(file), format, false)) {
+			writer.write(result);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+/*
+ * Process-wide registry of background indexes keyed by kinase interactions,
+ * each holding the libraries of all resolution levels. Each background is
+ * read and parsed at most once while it stays cached; concurrent requests for
+ * the same background wait on the same parse. The least recently used
+ * backgrounds are evicted once more than maximumSize are held.
+ * 
+ * If the kea.snapshot.dir system property names a directory, backgrounds are
+ * loaded from binary snapshots in there, which are compiled on first use and
+ * again whenever the size or modification time of a background database
+ * changes.
+ * 
+ * Backgrounds registered with the BackgroundRegistry are served from there
+ * and never held in here.
+ */
+public final class BackgroundCache {
+	
+	static Logger log = Logger.getLogger(BackgroundCache.class.getSimpleName());
+	
+	public static final int DEFAULT_MAXIMUM_SIZE = 16;
+	public static final String SNAPSHOT_DIRECTORY = "kea.snapshot.dir";
+	
+	private static int maximumSize = Integer.getInteger("kea.cache.size", DEFAULT_MAXIMUM_SIZE);
+	
+	// Access-ordered so iteration starts at the least recently used background
+	private static final LinkedHashMap<String, FutureTask<BackgroundIndex>> indexes = new LinkedHashMap<String, FutureTask<BackgroundIndex>>(16, 0.75f, true);
+	
+	// Shared by every library so the Fisher exact test never rebuilds its tables
+	private static final LogFactorialTable logFactorials = new LogFactorialTable();
+	
+	private BackgroundCache() {
+	}
+	
+	public static LogFactorialTable getLogFactorials() {
+		return logFactorials;
+	}
+	
+	public static BackgroundLibrary get(String interactions, String level) {
+		return getIndex(interactions).getLibrary(level);
+	}
+	
+	public static BackgroundIndex getIndex(String interactions) {
+		return getIndex(interactions, null);
+	}
+	
+	/*
+	 * Reports the records compiled to listener if this call parses the
+	 * background; calls waiting for a parse in progress report nothing.
+	 */
+	public static BackgroundIndex getIndex(final String interactions, final ProgressListener listener) {
+		BackgroundIndex registered = BackgroundRegistry.get(interactions);
+		if (registered != null)
+			return registered;
+		
+		FutureTask<BackgroundIndex> task;
+		boolean owner = false;
+		synchronized (indexes) {
+			task = indexes.get(interactions);
+			if (task == null) {
+				task = new FutureTask<BackgroundIndex>(new Callable<BackgroundIndex>() {
+					public BackgroundIndex call() throws IOException {
+						BackgroundIndex index = load(interactions, listener);
+						// Largest table is the whole universe plus an input list covering it
+						logFactorials.ensureCapacity(2 * index.getUniverseSize());
+						return index;
+					}
+				});
+				indexes.put(interactions, task);
+				owner = true;
+				evict();
+			}
+		}
+		
+		// Parse outside of the lock so other backgrounds can be served meanwhile
+		if (owner)
+			task.run();
+		
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading " + interactions, e);
+		} catch (ExecutionException e) {
+			synchronized (indexes) {
+				if (indexes.get(interactions) == task)
+					indexes.remove(interactions);
+			}
+			throw new IllegalStateException("Unable to load background " + interactions, e.getCause());
+		}
+	}
+	
+	private static BackgroundIndex load(String interactions, ProgressListener listener) throws IOException {
+		String directory = System.getProperty(SNAPSHOT_DIRECTORY);
+		if (directory == null)
+			return compile(interactions, listener).toIndex(interactions);
+		
+		File file = LibrarySnapshot.fileFor(new File(directory), interactions);
+		if (file.exists()) {
+			try {
+				long start = System.nanoTime();
+				LibrarySnapshot snapshot = LibrarySnapshot.read(file, LibrarySnapshot.sourceFingerprint(KEA.backgroundResources(interactions)));
+				EnrichmentMetrics.record(EnrichmentMetrics.Stage.RESOURCE_LOAD, start);
+				return snapshot.toIndex(interactions);
+			} catch (IOException e) {
+				log.warning("Recompiling snapshot: " + e.getMessage());
+			}
+		}
+		
+		LibrarySnapshot snapshot = compile(interactions, listener);
+		try {
+			new File(directory).mkdirs();
+			snapshot.write(file);
+		} catch (IOException e) {
+			log.warning("Unable to write snapshot " + file + ": " + e.getMessage());
+		}
+		return snapshot.toIndex(interactions);
+	}
+	
+	// Streamed, so reading the resources is part of the parse
+	private static LibrarySnapshot compile(String interactions, ProgressListener listener) throws IOException {
+		long start = System.nanoTime();
+		LibrarySnapshot snapshot = LibrarySnapshot.compile(KEA.backgroundResources(interactions), listener);
+		EnrichmentMetrics.record(EnrichmentMetrics.Stage.BACKGROUND_PARSE, start);
+		return snapshot;
+	}
+	
+	// Warm up the cache so that the first query does not pay for parsing
+	public static void preload(String... backgrounds) {
+		for (String interactions : backgrounds)
+			getIndex(interactions);
+	}
+	
+	public static boolean isLoaded(String interactions) {
+		if (BackgroundRegistry.isRegistered(interactions))
+			return true;
+		synchronized (indexes) {
+			FutureTask<BackgroundIndex> task = indexes.get(interactions);
+			return task != null && task.isDone();
+		}
+	}
+	
+	public static void invalidate(String interactions) {
+		synchronized (indexes) {
+			indexes.remove(interactions);
+		}
+	}
+	
+	public static void clear() {
+		synchronized (indexes) {
+			indexes.clear();
+		}
+	}
+	
+	public static int size() {
+		synchronized (indexes) {
+			return indexes.size();
+		}
+	}
+	
+	public static void setMaximumSize(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("Cache must hold at least one background.");
+		synchronized (indexes) {
+			maximumSize = size;
+			evict();
+		}
+	}
+	
+	// Must hold the lock on indexes
+	private static void evict() {
+		Iterator<Map.Entry<String, FutureTask<BackgroundIndex>>> itr = indexes.entrySet().iterator();
+		while (indexes.size() > maximumSize && itr.hasNext()) {
+			Map.Entry<String, FutureTask<BackgroundIndex>> eldest = itr.next();
+			log.fine("Evicting background " + eldest.getKey());
+			itr.remove();
+		}
+	}
+}
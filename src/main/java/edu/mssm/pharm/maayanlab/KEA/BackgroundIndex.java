@@ -0,0 +1,114 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.nio.IntBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/*
+ * Immutable index of one background database at all three levels of kinase
+ * resolution. The levels share one substrate dictionary, so a gene list is
+ * encoded and filtered against the universe once and can then be scored at
+ * any level. Kinase sets come from the distinct (group, family, kinase)
+ * leaves of the background, and family and group sets are the unions of the
+ * sets of their member leaves.
+ * 
+ * Everything is read from the LibrarySnapshot the index was built from, names
+ * are decoded on first use.
+ */
+public final class BackgroundIndex {
+	
+	public final static String[] LEVELS = {KEA.KINASE_GROUP_LEVEL, KEA.KINASE_FAMILY_LEVEL, KEA.KINASE_LEVEL};
+	
+	private final String interactions;
+	private final LibrarySnapshot snapshot;
+	
+	// Decoded on first use, racy but Strings are immutable
+	private final String[] substrateNames;
+	private volatile Set<String> substrateUniverse;
+	
+	// Indexed by level column (0: group, 1: family, 2: kinase)
+	private final BackgroundLibrary[] libraries = new BackgroundLibrary[LEVELS.length];
+	
+	BackgroundIndex(String interactions, LibrarySnapshot snapshot) {
+		this.interactions = interactions;
+		this.snapshot = snapshot;
+		substrateNames = new String[snapshot.getUniverseSize()];
+		for (int column = 0; column < LEVELS.length; column++)
+			libraries[column] = new BackgroundLibrary(this, LEVELS[column], snapshot.getLevel(column));
+	}
+	
+	public String getInteractions() {
+		return interactions;
+	}
+	
+	// Fingerprint of the content, changes whenever the background database does
+	public long getVersion() {
+		return snapshot.getFingerprint();
+	}
+	
+	public BackgroundLibrary getLibrary(String level) {
+		return libraries[BackgroundLibrary.levelColumn(level)];
+	}
+	
+	// Decodes every substrate name on first use
+	public Set<String> getSubstrateUniverse() {
+		Set<String> universe = substrateUniverse;
+		if (universe == null) {
+			LinkedHashSet<String> names = new LinkedHashSet<String>(2 * substrateNames.length);
+			for (int substrate = 0; substrate < substrateNames.length; substrate++)
+				names.add(getSubstrateName(substrate));
+			substrateUniverse = universe = Collections.unmodifiableSet(names);
+		}
+		return universe;
+	}
+	
+	public int getUniverseSize() {
+		return substrateNames.length;
+	}
+	
+	String getSubstrateName(int substrate) {
+		String name = substrateNames[substrate];
+		if (name == null)
+			substrateNames[substrate] = name = snapshot.substrateName(substrate);
+		return name;
+	}
+	
+	// Id of an upper-cased gene, -1 if it is not in the background universe
+	int getSubstrateId(String gene) {
+		String name = gene.toUpperCase();
+		IntBuffer table = snapshot.getSubstrateTable();
+		int mask = table.limit() - 1;
+		int hash = name.hashCode();
+		for (int slot = LibrarySnapshot.hash(name, table.limit());; slot = (slot + 1) & mask) {
+			int substrate = table.get(slot) - 1;
+			if (substrate < 0)
+				return -1;
+			// Names cache their hash codes, so most other names are told apart without comparing them
+			String candidate = getSubstrateName(substrate);
+			if (candidate.hashCode() == hash && candidate.equals(name))
+				return substrate;
+		}
+	}
+	
+	/*
+	 * Encodes an input gene list as a bitset over the substrate dictionary.
+	 * Genes are upper-cased and genes outside of the background universe are
+	 * dropped, which is the universe filtering step of the enrichment. The
+	 * encoding is valid for every level of this index.
+	 */
+	public long[] encode(Collection<String> genes) {
+		long[] bits = new long[BackgroundLibrary.wordsFor(substrateNames.length)];
+		for (String gene : genes) {
+			int id = getSubstrateId(gene);
+			if (id >= 0)
+				BackgroundLibrary.set(bits, id);
+		}
+		return bits;
+	}
+	
+	static long mix(long hash, long value) {
+		return (hash ^ value) * 0x100000001B3L;
+	}
+}
@@ -0,0 +1,254 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Immutable kinase to substrate index of a background database at a single
+ * level of kinase resolution, one of the levels of a BackgroundIndex.
+ * Instances are shared between threads and KEA instances through the
+ * BackgroundCache, so nothing in here may change after construction.
+ * 
+ * Substrates are encoded as dense int ids (in order of first appearance) and
+ * every kinase keeps its substrates as a bitset over those ids, so the overlap
+ * with an encoded input list is a popcount of the AND of the two bitsets. The
+ * inverted index from substrates to kinases (postings) lets short input lists
+ * visit only the kinases they hit instead. Sparse kinases of long input lists
+ * are intersected as sorted id arrays (see SortedIntersection), which is
+ * cheaper than a word for every 64 substrates of the universe. Bitsets, ids and
+ * postings are views of the LibrarySnapshot, see LibrarySnapshot.Level.
+ */
+public final class BackgroundLibrary {
+	
+	private final BackgroundIndex index;
+	private final String level;
+	private final LibrarySnapshot.Level view;
+	
+	// Decoded on first use, racy but Strings are immutable
+	private final String[] kinaseNames;
+	
+	// Views of the ids of every kinase, so the sorted kernels allocate nothing
+	private final IntBuffer[] substrateIds;
+	
+	// Loaded on first use, generating them can take a while
+	private volatile BackgroundRanks ranks;
+	
+	// Substrate names by kinase name, built on first use of getKinaseSubstrates()
+	private volatile Map<String, Set<String>> kinaseSubstrates;
+	
+	BackgroundLibrary(BackgroundIndex index, String level, LibrarySnapshot.Level view) {
+		this.index = index;
+		this.level = level;
+		this.view = view;
+		kinaseNames = new String[view.kinases];
+		substrateIds = new IntBuffer[view.kinases];
+		for (int kinase = 0; kinase < view.kinases; kinase++)
+			substrateIds[kinase] = view.substrates(kinase);
+	}
+	
+	public static BackgroundLibrary parse(String interactions, String level, Collection<String> background) {
+		long start = System.nanoTime();
+		LibrarySnapshot snapshot = LibrarySnapshot.compile(background);
+		EnrichmentMetrics.record(EnrichmentMetrics.Stage.BACKGROUND_PARSE, start);
+		return snapshot.toIndex(interactions).getLibrary(level);
+	}
+	
+	// Determine level of kinase resolution (0-level: kinase-group, 1-level: kinase family: 2-level: kinase)
+	static int levelColumn(String level) {
+		if (level.equals(KEA.KINASE_GROUP_LEVEL))
+			return 0;
+		else if (level.equals(KEA.KINASE_FAMILY_LEVEL))
+			return 1;
+		else
+			return 2;
+	}
+	
+	public BackgroundIndex getIndex() {
+		return index;
+	}
+	
+	public String getInteractions() {
+		return index.getInteractions();
+	}
+	
+	public String getLevel() {
+		return level;
+	}
+	
+	public Map<String, Set<String>> getKinaseSubstrates() {
+		Map<String, Set<String>> map = kinaseSubstrates;
+		if (map == null) {
+			synchronized (this) {
+				map = kinaseSubstrates;
+				if (map == null) {
+					LinkedHashMap<String, Set<String>> kinaseMap = new LinkedHashMap<String, Set<String>>(2 * size());
+					for (int kinase = 0; kinase < size(); kinase++)
+						kinaseMap.put(getKinaseName(kinase), getSubstrates(kinase));
+					kinaseSubstrates = map = Collections.unmodifiableMap(kinaseMap);
+				}
+			}
+		}
+		return map;
+	}
+	
+	public Set<String> getSubstrateUniverse() {
+		return index.getSubstrateUniverse();
+	}
+	
+	public int getUniverseSize() {
+		return index.getUniverseSize();
+	}
+	
+	// Number of kinase-substrate pairs, i.e. the total length of the postings of the inverted index
+	public long getEdgeCount() {
+		return view.substrates.limit();
+	}
+	
+	// Number of kinases
+	public int size() {
+		return view.kinases;
+	}
+	
+	public String getKinaseName(int kinase) {
+		String name = kinaseNames[kinase];
+		if (name == null)
+			kinaseNames[kinase] = name = view.kinaseName(kinase);
+		return name;
+	}
+	
+	public int getKinaseSize(int kinase) {
+		return view.substrateOffsets.get(kinase + 1) - view.substrateOffsets.get(kinase);
+	}
+	
+	// Decoded on every call, only kinases that make it into a result need their names
+	public Set<String> getSubstrates(int kinase) {
+		Map<String, Set<String>> map = kinaseSubstrates;
+		if (map != null)
+			return map.get(getKinaseName(kinase));
+		IntBuffer ids = getSubstrateIds(kinase);
+		HashSet<String> substrates = new HashSet<String>(2 * ids.limit());
+		for (int i = 0; i < ids.limit(); i++)
+			substrates.add(index.getSubstrateName(ids.get(i)));
+		// Frozen so they can be handed out to concurrent queries
+		return Collections.unmodifiableSet(substrates);
+	}
+	
+	// Rank statistics for z-scores, loaded or generated on first use
+	public BackgroundRanks getRanks() {
+		BackgroundRanks loaded = ranks;
+		if (loaded == null) {
+			synchronized (this) {
+				loaded = ranks;
+				if (loaded == null) {
+					long start = System.nanoTime();
+					ranks = loaded = BackgroundRanks.load(this);
+					EnrichmentMetrics.record(EnrichmentMetrics.Stage.RANKS_LOAD, start);
+				}
+			}
+		}
+		return loaded;
+	}
+	
+	// Postings of substrate s are getPostings() from getPostingOffsets() s to s + 1, kinase ids in ascending order
+	IntBuffer getPostingOffsets() {
+		return view.postingOffsets;
+	}
+	
+	IntBuffer getPostings() {
+		return view.postings;
+	}
+	
+	// Ids of the substrates of a kinase, in ascending order
+	IntBuffer getSubstrateIds(int kinase) {
+		return substrateIds[kinase];
+	}
+	
+	// Rank statistics if they have been loaded already, null otherwise
+	public BackgroundRanks getLoadedRanks() {
+		return ranks;
+	}
+	
+	// See BackgroundIndex.encode(), the encoding is shared by all levels
+	public long[] encode(Collection<String> genes) {
+		return index.encode(genes);
+	}
+	
+	// Number of input substrates that are substrates of the kinase
+	public int overlap(int kinase, long[] input) {
+		LongBuffer bits = view.bits;
+		int base = kinase * view.words;
+		int count = 0;
+		for (int i = 0; i < input.length; i++)
+			count += Long.bitCount(bits.get(base + i) & input[i]);
+		return count;
+	}
+	
+	/*
+	 * Same as overlap(kinase, input), with the input also given as its sorted
+	 * ids (see toIds). Takes whichever of the bitset AND and the sorted kernels
+	 * is cheaper for the size of the kinase and the input.
+	 */
+	public int overlap(int kinase, long[] input, int[] inputIds) {
+		return overlap(kinase, input, IntBuffer.wrap(inputIds));
+	}
+	
+	int overlap(int kinase, long[] input, IntBuffer inputIds) {
+		if (SortedIntersection.cost(getKinaseSize(kinase), inputIds.limit()) < view.words)
+			return SortedIntersection.size(substrateIds[kinase], inputIds);
+		return overlap(kinase, input);
+	}
+	
+	// Materializes the names of the overlapping substrates, only needed for kinases with hits
+	public Set<String> overlappingSubstrates(int kinase, long[] input) {
+		LongBuffer bits = view.bits;
+		int base = kinase * view.words;
+		Set<String> overlap = new HashSet<String>();
+		for (int i = 0; i < input.length; i++) {
+			long word = bits.get(base + i) & input[i];
+			while (word != 0) {
+				overlap.add(index.getSubstrateName((i << 6) + Long.numberOfTrailingZeros(word)));
+				word &= word - 1;
+			}
+		}
+		return overlap;
+	}
+	
+	public static int cardinality(long[] bits) {
+		int count = 0;
+		for (long word : bits)
+			count += Long.bitCount(word);
+		return count;
+	}
+	
+	// Ids of the set bits in ascending order, count is their number
+	static int[] toIds(long[] bits, int count) {
+		int[] ids = new int[count];
+		int n = 0;
+		for (int i = 0; i < bits.length; i++)
+			for (long word = bits[i]; word != 0; word &= word - 1)
+				ids[n++] = (i << 6) + Long.numberOfTrailingZeros(word);
+		return ids;
+	}
+	
+	static int wordsFor(int bits) {
+		return (bits + 63) >>> 6;
+	}
+	
+	static void set(long[] bits, int index) {
+		bits[index >>> 6] |= 1L << index;
+	}
+	
+	static void clear(long[] bits, int index) {
+		bits[index >>> 6] &= ~(1L << index);
+	}
+	
+	static boolean get(long[] bits, int index) {
+		return (bits[index >>> 6] & (1L << index)) != 0;
+	}
+}
@@ -0,0 +1,335 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Logger;
+
+/*
+ * Mean and standard deviation of the p-value rank of every kinase of a
+ * library over random gene lists, used for the z-score and combined score.
+ * 
+ * Bundled rank tables are used where KEA ships them (kinase level only).
+ * Otherwise the table is generated from random permutations of the substrate
+ * universe in parallel on a fork/join pool and cached as a versioned file in
+ * kea.ranks.dir (kea.snapshot.dir or the temporary directory by default).
+ * Every permutation has its own seed and ranks are summed as integers, so a
+ * table only depends on the library, the number of permutations, the list
+ * size and the seed, never on how the work was split. Cached tables are keyed
+ * by the version (content fingerprint) of the background, so a background that
+ * changes, e.g. a reloaded registered one, never gets the table of the old one.
+ */
+public final class BackgroundRanks {
+	
+	static Logger log = Logger.getLogger(BackgroundRanks.class.getSimpleName());
+	
+	public final static int VERSION = 2;
+	public final static String DIRECTORY = "kea.ranks.dir";
+	public final static String EXTENSION = ".ranks";
+	
+	public final static int DEFAULT_PERMUTATIONS = Integer.getInteger("kea.ranks.permutations", 1000);
+	public final static int DEFAULT_LIST_SIZE = Integer.getInteger("kea.ranks.size", 300);
+	public final static long DEFAULT_SEED = 0x4B4541L;
+	
+	// Permutations per fork/join leaf
+	private final static int THRESHOLD = 8;
+	
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+	
+	// By kinase id of the library
+	private final double[] mean;
+	private final double[] standardDeviation;
+	
+	private BackgroundRanks(double[] mean, double[] standardDeviation) {
+		this.mean = mean;
+		this.standardDeviation = standardDeviation;
+	}
+	
+	public double getMean(int kinase) {
+		return mean[kinase];
+	}
+	
+	public double getStandardDeviation(int kinase) {
+		return standardDeviation[kinase];
+	}
+	
+	// Bundled ranks, otherwise cached or freshly generated ones
+	static BackgroundRanks load(BackgroundLibrary library) {
+		if (library.getLevel().equals(KEA.KINASE_LEVEL) && Arrays.asList(KEA.BACKGROUNDS).contains(library.getInteractions())) {
+			ArrayList<String> bundled = KEA.assembleBackgroundRanks(library.getInteractions());
+			if (bundled != null)
+				return parse(library, bundled, "\\s");
+		}
+		
+		File file = fileFor(directory(), library);
+		String header = header(library, DEFAULT_PERMUTATIONS, DEFAULT_LIST_SIZE, DEFAULT_SEED);
+		if (file.exists()) {
+			try {
+				BackgroundRanks ranks = read(library, file, header);
+				if (ranks != null)
+					return ranks;
+				log.info("Regenerating outdated " + file);
+			} catch (IOException e) {
+				log.warning("Regenerating " + file + ": " + e.getMessage());
+			}
+		}
+		
+		// One-time cost, paid by the first combined score query of the background
+		long start = System.nanoTime();
+		BackgroundRanks ranks = generate(library, DEFAULT_PERMUTATIONS, DEFAULT_LIST_SIZE, DEFAULT_SEED);
+		log.info("Generated ranks of " + library.getInteractions() + " at " + library.getLevel() + " level in "
+				+ (System.nanoTime() - start) / 1000000 + " ms (" + DEFAULT_PERMUTATIONS + " permutations)");
+		try {
+			ranks.write(library, file, header);
+		} catch (IOException e) {
+			log.warning("Unable to write " + file + ": " + e.getMessage());
+		}
+		return ranks;
+	}
+	
+	public static BackgroundRanks generate(BackgroundLibrary library, int permutations, int listSize, long seed) {
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			long[][] totals = pool.invoke(new Permutations(library, BackgroundCache.getLogFactorials(), Math.min(listSize, library.getUniverseSize()), seed, 0, permutations));
+			
+			double[] mean = new double[library.size()];
+			double[] standardDeviation = new double[library.size()];
+			for (int kinase = 0; kinase < library.size(); kinase++) {
+				long count = totals[0][kinase];
+				if (count == 0)
+					continue;
+				double kinaseMean = (double) totals[1][kinase] / count;
+				double variance = (double) totals[2][kinase] / count - kinaseMean * kinaseMean;
+				// Kinases that never moved carry no rank information, leave their z-score at 0
+				if (variance > 0) {
+					mean[kinase] = kinaseMean;
+					standardDeviation[kinase] = Math.sqrt(variance);
+				}
+			}
+			return new BackgroundRanks(mean, standardDeviation);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/*
+	 * Ranks kinases by p-value for permutations [from, to) and returns the
+	 * number of times each kinase was hit, the sum of its ranks and the sum of
+	 * squared ranks.
+	 */
+	private static class Permutations extends RecursiveTask<long[][]> {
+		
+		private static final long serialVersionUID = 3374582301932652473L;
+		
+		private final BackgroundLibrary library;
+		private final LogFactorialTable fisher;
+		private final int listSize;
+		private final long seed;
+		private final int from, to;
+		
+		Permutations(BackgroundLibrary library, LogFactorialTable fisher, int listSize, long seed, int from, int to) {
+			this.library = library;
+			this.fisher = fisher;
+			this.listSize = listSize;
+			this.seed = seed;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected long[][] compute() {
+			if (to - from > THRESHOLD) {
+				int middle = (from + to) >>> 1;
+				Permutations left = new Permutations(library, fisher, listSize, seed, from, middle);
+				left.fork();
+				long[][] right = new Permutations(library, fisher, listSize, seed, middle, to).compute();
+				long[][] totals = left.join();
+				for (int i = 0; i < totals.length; i++)
+					for (int kinase = 0; kinase < totals[i].length; kinase++)
+						totals[i][kinase] += right[i][kinase];
+				return totals;
+			}
+			
+			int universe = library.getUniverseSize();
+			fisher.ensureCapacity(listSize + universe);
+			
+			long[][] totals = new long[3][library.size()];
+			
+			// Scratch space reused by every permutation of this leaf
+			int[] substrates = new int[universe];
+			long[] input = new long[BackgroundLibrary.wordsFor(universe)];
+			int[] hits = new int[library.size()];
+			int[] scratch = new int[library.size()];
+			double[] pvalues = new double[library.size()];
+			
+			for (int permutation = from; permutation < to; permutation++) {
+				Random random = new Random(seed ^ (permutation * 0x9E3779B97F4A7C15L));
+				
+				// Partial Fisher-Yates shuffle picks listSize distinct substrates
+				for (int i = 0; i < universe; i++)
+					substrates[i] = i;
+				Arrays.fill(input, 0);
+				for (int i = 0; i < listSize; i++) {
+					int j = i + random.nextInt(universe - i);
+					int substrate = substrates[j];
+					substrates[j] = substrates[i];
+					substrates[i] = substrate;
+					BackgroundLibrary.set(input, substrate);
+				}
+				
+				int hitCount = 0;
+				for (int kinase = 0; kinase < library.size(); kinase++) {
+					int overlap = library.overlap(kinase, input);
+					if (overlap > 0) {
+						int kinaseSize = library.getKinaseSize(kinase);
+						pvalues[kinase] = fisher.getRightTailedP(overlap, listSize - overlap, kinaseSize, universe - kinaseSize);
+						hits[hitCount++] = kinase;
+					}
+				}
+				
+				sortByPValue(hits, scratch, hitCount, pvalues);
+				for (int rank = 1; rank <= hitCount; rank++) {
+					int kinase = hits[rank - 1];
+					totals[0][kinase]++;
+					totals[1][kinase] += rank;
+					totals[2][kinase] += (long) rank * rank;
+				}
+			}
+			return totals;
+		}
+	}
+	
+	/*
+	 * Stable bottom-up merge sort of the first length hits by p-value. Hits are
+	 * collected in ascending kinase order, so ties stay ordered by kinase id.
+	 */
+	private static void sortByPValue(int[] hits, int[] scratch, int length, double[] pvalues) {
+		int[] from = hits, to = scratch;
+		for (int width = 1; width < length; width <<= 1) {
+			for (int low = 0; low < length; low += width << 1) {
+				int middle = Math.min(low + width, length);
+				int high = Math.min(middle + width, length);
+				int i = low, j = middle, k = low;
+				while (i < middle && j < high)
+					to[k++] = (Double.compare(pvalues[from[j]], pvalues[from[i]]) < 0) ? from[j++] : from[i++];
+				while (i < middle)
+					to[k++] = from[i++];
+				while (j < high)
+					to[k++] = from[j++];
+			}
+			int[] swap = from;
+			from = to;
+			to = swap;
+		}
+		if (from != hits)
+			System.arraycopy(from, 0, hits, 0, length);
+	}
+	
+	// Lines of kinase name, mean and standard deviation
+	private static BackgroundRanks parse(BackgroundLibrary library, List<String> lines, String separator) {
+		HashMap<String, Integer> kinases = new HashMap<String, Integer>();
+		for (int kinase = 0; kinase < library.size(); kinase++)
+			kinases.put(library.getKinaseName(kinase), kinase);
+		
+		double[] mean = new double[library.size()];
+		double[] standardDeviation = new double[library.size()];
+		for (String line : lines) {
+			if (line.startsWith("#"))
+				continue;
+			String[] splitLine = line.split(separator);
+			Integer kinase = kinases.get(splitLine[0]);
+			if (kinase != null) {
+				mean[kinase] = Double.parseDouble(splitLine[1]);
+				standardDeviation[kinase] = Double.parseDouble(splitLine[2]);
+			}
+		}
+		return new BackgroundRanks(mean, standardDeviation);
+	}
+	
+	// Returns null if the file was generated for other parameters or another version of the library
+	private static BackgroundRanks read(BackgroundLibrary library, File file, String header) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+		try {
+			if (!header.equals(in.readLine()))
+				return null;
+			
+			ArrayList<String> lines = new ArrayList<String>();
+			String line;
+			while ((line = in.readLine()) != null)
+				lines.add(line);
+			return parse(library, lines, "\t");
+		} catch (RuntimeException e) {
+			throw new IOException(file + " is corrupt", e);
+		} finally {
+			in.close();
+		}
+	}
+	
+	private void write(BackgroundLibrary library, File file, String header) throws IOException {
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temp), UTF_8));
+			try {
+				out.println(header);
+				for (int kinase = 0; kinase < library.size(); kinase++)
+					out.println(library.getKinaseName(kinase) + "\t" + mean[kinase] + "\t" + standardDeviation[kinase]);
+			} finally {
+				out.close();
+			}
+			
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Unable to move ranks to " + file);
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+	
+	private static String header(BackgroundLibrary library, int permutations, int listSize, long seed) {
+		return "# KEA background ranks version=" + VERSION + " background=" + Long.toHexString(library.getIndex().getVersion())
+				+ " kinases=" + library.size() + " universe=" + library.getUniverseSize()
+				+ " permutations=" + permutations + " size=" + listSize + " seed=" + seed;
+	}
+	
+	static File directory() {
+		String directory = System.getProperty(DIRECTORY, System.getProperty(BackgroundCache.SNAPSHOT_DIRECTORY));
+		if (directory == null)
+			return new File(System.getProperty("java.io.tmpdir"), "kea");
+		return new File(directory);
+	}
+	
+	static File fileFor(File directory, BackgroundLibrary library) {
+		String name = library.getInteractions() + "." + library.getLevel() + "." + Long.toHexString(library.getIndex().getVersion());
+		return new File(directory, name.replaceAll("[^A-Za-z0-9._-]", "_") + EXTENSION);
+	}
+	
+	/*
+	 * Generates (or refreshes) the cached rank tables of the given backgrounds,
+	 * all built-in ones by default, at every level of kinase resolution.
+	 */
+	public static void main(String[] args) {
+		String[] backgrounds = (args.length > 0) ? args : KEA.BACKGROUNDS;
+		for (String interactions : backgrounds) {
+			for (String level : BackgroundIndex.LEVELS) {
+				BackgroundCache.get(interactions, level).getRanks();
+				log.info("Ranks of " + interactions + " at " + level + " level ready");
+			}
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/*
+ * Process-wide registry of user-supplied backgrounds, e.g. in-house
+ * kinase-substrate sets, which are looked up by name wherever a built-in
+ * background can be (BackgroundCache, KEA, KEAServer). Files are either CSV
+ * with the group,family,kinase,substrate records of the bundled databases, or
+ * GMT with one kinase per line followed by a description and its substrates;
+ * GMT kinases have no group or family, so they are their own group and family.
+ * Substrates are kept as written, like the records of BackgroundLibrary.parse;
+ * input genes are upper-cased, so only upper-case substrates can be hit.
+ * 
+ * Every file is compiled into a BackgroundIndex once when it is registered and,
+ * unless registered otherwise, watched for changes. A changed file is compiled off to the side and swapped
+ * in atomically: queries in flight finish on the index they started with and
+ * later ones see the new one, nothing ever blocks on a reload. If the new file
+ * does not parse the previous index is kept. Cached results and generated rank
+ * tables are keyed by the version (content fingerprint) of the index, so the
+ * ones of the old file are never reused after a reload.
+ */
+public final class BackgroundRegistry {
+	
+	static Logger log = Logger.getLogger(BackgroundRegistry.class.getSimpleName());
+	
+	public static final String GMT_EXTENSION = ".gmt";
+	
+	// Editors and copies write a file in several steps, wait for them to settle
+	private static final long SETTLE_MILLIS = Long.getLong("kea.registry.settle", 200);
+	
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private static final ConcurrentHashMap<String, Registration> registrations = new ConcurrentHashMap<String, Registration>();
+	
+	// Guarded by the class, created with the first registration
+	private static WatchService watcher;
+	private static final HashMap<Path, WatchKey> directories = new HashMap<Path, WatchKey>();
+	
+	private BackgroundRegistry() {
+	}
+	
+	/*
+	 * Registers or replaces the background of a name and compiles it right
+	 * away, so a file that does not parse is rejected here. Built-in names
+	 * cannot be taken.
+	 */
+	public static BackgroundIndex register(String name, File file) throws IOException {
+		return register(name, file, true);
+	}
+	
+	// Without watching, e.g. for one-shot runs that should not start the watcher thread; reload() still works
+	public static BackgroundIndex register(String name, File file, boolean watch) throws IOException {
+		if (Arrays.asList(KEA.BACKGROUNDS).contains(name))
+			throw new IllegalArgumentException(name + " is a built-in background.");
+		
+		Registration registration = new Registration(name, file.getAbsoluteFile().toPath().normalize());
+		registration.reload();
+		registrations.put(name, registration);
+		if (watch)
+			watch(registration.path.getParent());
+		log.info("Registered background " + name + " from " + file);
+		return registration.index;
+	}
+	
+	public static void unregister(String name) {
+		registrations.remove(name);
+	}
+	
+	public static boolean isRegistered(String name) {
+		return registrations.containsKey(name);
+	}
+	
+	public static Set<String> getNames() {
+		return Collections.unmodifiableSet(registrations.keySet());
+	}
+	
+	// Current index of a registered background, null for other names
+	public static BackgroundIndex get(String name) {
+		Registration registration = registrations.get(name);
+		return (registration == null) ? null : registration.index;
+	}
+	
+	// Compiles the file of a registered background again, e.g. where file events are unreliable
+	public static BackgroundIndex reload(String name) throws IOException {
+		Registration registration = registrations.get(name);
+		if (registration == null)
+			throw new IllegalArgumentException("Unknown background " + name);
+		registration.reload();
+		return registration.index;
+	}
+	
+	// Streams the group,family,kinase,substrate records of a CSV or GMT file into a snapshot
+	static LibrarySnapshot compile(Path path) throws IOException {
+		boolean gmt = path.getFileName().toString().toLowerCase().endsWith(GMT_EXTENSION);
+		LibrarySnapshot.Compiler compiler = new LibrarySnapshot.Compiler();
+		BufferedReader reader = Files.newBufferedReader(path, UTF_8);
+		try {
+			String line;
+			for (int number = 1; (line = reader.readLine()) != null; number++) {
+				String record = line.trim();
+				if (record.isEmpty())
+					continue;
+				
+				if (gmt) {
+					// Kinase and description, then the substrates
+					int description = record.indexOf('\t');
+					int substrates = (description < 0) ? -1 : record.indexOf('\t', description + 1);
+					if (substrates < 0)
+						throw new IOException("Line " + number + " of " + path + " has no substrates.");
+					// Records are comma-separated
+					String kinase = record.substring(0, description).trim().replace(',', ';');
+					String leaf = kinase + "," + kinase + "," + kinase + ",";
+					for (int start = substrates + 1, end; start <= record.length(); start = end + 1) {
+						end = record.indexOf('\t', start);
+						if (end < 0)
+							end = record.length();
+						String substrate = record.substring(start, end).trim();
+						if (!substrate.isEmpty())
+							compiler.add(leaf + substrate);
+					}
+				}
+				else if (!compiler.add(line))
+					throw new IOException("Line " + number + " of " + path + " is not a group,family,kinase,substrate record.");
+			}
+		} finally {
+			reader.close();
+		}
+		if (compiler.isEmpty())
+			throw new IOException(path + " holds no records.");
+		return compiler.toSnapshot(0);
+	}
+	
+	private static synchronized void watch(Path directory) throws IOException {
+		if (directories.containsKey(directory))
+			return;
+		
+		if (watcher == null) {
+			watcher = FileSystems.getDefault().newWatchService();
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					processEvents();
+				}
+			}, "KEA background watcher");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		directories.put(directory, directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+	}
+	
+	private static void processEvents() {
+		while (true) {
+			try {
+				WatchKey key = watcher.take();
+				
+				// Collect every change of the burst before reloading anything
+				Set<Path> changed = new LinkedHashSet<Path>();
+				do {
+					Path directory = (Path) key.watchable();
+					for (WatchEvent<?> event : key.pollEvents())
+						if (event.kind() != StandardWatchEventKinds.OVERFLOW)
+							changed.add(directory.resolve((Path) event.context()));
+						else
+							changed.add(null);
+					key.reset();
+				} while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+				
+				for (Registration registration : registrations.values()) {
+					// Events were lost on overflow, so everything is checked
+					if (!changed.contains(registration.path) && !changed.contains(null))
+						continue;
+					try {
+						if (registration.reload())
+							log.info("Reloaded background " + registration.name + " from " + registration.path);
+					} catch (IOException e) {
+						log.warning("Keeping the previous version of " + registration.name + ": " + e.getMessage());
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+		}
+	}
+	
+	private static final class Registration {
+		
+		private final String name;
+		private final Path path;
+		
+		// Swapped as a whole, readers never lock
+		private volatile BackgroundIndex index;
+		private long lastModified = -1;
+		private long length = -1;
+		
+		Registration(String name, Path path) {
+			this.name = name;
+			this.path = path;
+		}
+		
+		// False if the file did not change since it was last compiled
+		synchronized boolean reload() throws IOException {
+			File file = path.toFile();
+			if (index != null && file.lastModified() == lastModified && file.length() == length)
+				return false;
+			long modified = file.lastModified();
+			long size = file.length();
+			
+			long start = System.nanoTime();
+			LibrarySnapshot snapshot = compile(path);
+			EnrichmentMetrics.record(EnrichmentMetrics.Stage.BACKGROUND_PARSE, start);
+			
+			index = snapshot.toIndex(name);
+			lastModified = modified;
+			length = size;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,487 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Reentrant kinase enrichment. An engine only holds its immutable settings,
+ * all per-query state lives on the stack of enrich(), and backgrounds are
+ * immutable BackgroundLibrary instances, so one engine can be shared by any
+ * number of threads without locking. Engines given a ResultCache answer gene
+ * lists they have seen before from the cache, in whatever order they were
+ * scored in before.
+ * 
+ * Engines given a ForkJoinPool split the Fisher's tests of a single large
+ * query over the pool. Every kinase writes its own slot of the result arrays,
+ * so results are identical to sequential scoring. Queries with less work than
+ * PARALLEL_WORK tail terms stay on the calling thread, where forking would cost
+ * more than it saves.
+ * 
+ * Engines given a significance cutoff below 1 only finish the Fisher's tests
+ * of kinases that can reach it, see withCutoff().
+ */
+public final class EnrichmentEngine {
+	
+	private final static int PROGRESS_INTERVAL = 64;
+	private final static int INITIAL_HITS = 32;
+	// A posting is a scattered increment, a bitset word a sequential AND and popcount
+	private final static double POSTING_COST = 4;
+	// Hypergeometric tail terms summed by the Fisher's tests of a query or a parallel task
+	private final static long PARALLEL_WORK = 1 << 16;
+	private final static long SPLIT_WORK = 1 << 13;
+	
+	private final String sortBy;
+	private final LogFactorialTable fisher;
+	// Optional, results are recomputed without one
+	private final ResultCache cache;
+	// Optional, also makes scoring cancellable
+	private final ProgressListener listener;
+	// Optional, large queries are tested in parallel
+	private final ForkJoinPool pool;
+	// P-values above are not computed exactly, 1 computes all of them
+	private final double cutoff;
+	
+	public EnrichmentEngine(String sortBy) {
+		this(sortBy, BackgroundCache.getLogFactorials(), null);
+	}
+	
+	public EnrichmentEngine(String sortBy, ResultCache cache) {
+		this(sortBy, BackgroundCache.getLogFactorials(), cache);
+	}
+	
+	public EnrichmentEngine(String sortBy, LogFactorialTable fisher) {
+		this(sortBy, fisher, null);
+	}
+	
+	public EnrichmentEngine(String sortBy, LogFactorialTable fisher, ResultCache cache) {
+		this(sortBy, fisher, cache, null, null, 1);
+	}
+	
+	private EnrichmentEngine(String sortBy, LogFactorialTable fisher, ResultCache cache, ProgressListener listener, ForkJoinPool pool, double cutoff) {
+		this.sortBy = sortBy;
+		this.fisher = fisher;
+		this.cache = cache;
+		this.listener = listener;
+		this.pool = pool;
+		this.cutoff = cutoff;
+	}
+	
+	// Same engine reporting the progress of scoring, for a single thread since listeners rarely are thread-safe
+	public EnrichmentEngine withListener(ProgressListener listener) {
+		return new EnrichmentEngine(sortBy, fisher, cache, listener, pool, cutoff);
+	}
+	
+	// Same engine testing large queries in parallel on pool, scoring with a listener stays on its thread
+	public EnrichmentEngine withPool(ForkJoinPool pool) {
+		return new EnrichmentEngine(sortBy, fisher, cache, listener, pool, cutoff);
+	}
+	
+	/*
+	 * Same engine for screening at a significance cutoff. The Fisher's test of a
+	 * kinase is given up as soon as its p-value is known to be above the cutoff,
+	 * either from the expected overlap or from the partial sum of the tail, and
+	 * the kinase is reported as not significant with a p-value of 1. Kinases up
+	 * to the cutoff get their exact p-values and keep their order, and so do
+	 * their Benjamini-Hochberg adjusted p-values up to the cutoff. These partial
+	 * results are not cached.
+	 */
+	public EnrichmentEngine withCutoff(double cutoff) {
+		return new EnrichmentEngine(sortBy, fisher, cache, listener, pool, cutoff);
+	}
+	
+	public double getCutoff() {
+		return cutoff;
+	}
+	
+	public String getSortBy() {
+		return sortBy;
+	}
+	
+	// Enrichment against a cached background
+	public EnrichmentResult enrich(String interactions, String level, Collection<String> genes) {
+		return enrich(BackgroundCache.get(interactions, level), genes);
+	}
+	
+	public EnrichmentResult enrich(BackgroundLibrary library, Collection<String> genes) {
+		// filter substrates from input list that are not associated with an upstream kinase
+		return score(library, encode(library.getIndex(), genes));
+	}
+	
+	/*
+	 * Scores one gene list against several backgrounds in parallel on the given
+	 * executor, which may be shared with other work. The list is upper-cased and
+	 * deduplicated once, and every background is loaded and scored in a task of
+	 * its own, so the query takes about as long as the slowest background.
+	 * Results are keyed by background in the order given.
+	 */
+	public IntegratedResult enrich(Collection<String> backgrounds, final String level, Collection<String> genes, ExecutorService executor) {
+		final Set<String> normalized = new LinkedHashSet<String>();
+		for (String gene : genes)
+			normalized.add(gene.toUpperCase());
+		
+		LinkedHashMap<String, Future<EnrichmentResult>> futures = new LinkedHashMap<String, Future<EnrichmentResult>>();
+		for (final String interactions : backgrounds) {
+			futures.put(interactions, executor.submit(new Callable<EnrichmentResult>() {
+				public EnrichmentResult call() {
+					return enrich(interactions, level, normalized);
+				}
+			}));
+		}
+		
+		LinkedHashMap<String, EnrichmentResult> results = new LinkedHashMap<String, EnrichmentResult>();
+		try {
+			for (Map.Entry<String, Future<EnrichmentResult>> future : futures.entrySet()) {
+				try {
+					results.put(future.getKey(), future.getValue().get());
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Enrichment against " + future.getKey() + " failed", e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while scoring backgrounds", e);
+		} finally {
+			// Nothing left to wait for once one background failed
+			for (Future<EnrichmentResult> future : futures.values())
+				future.cancel(true);
+		}
+		return new IntegratedResult(results);
+	}
+	
+	/*
+	 * Scores one gene list at several levels of kinase resolution, the input is
+	 * only encoded and filtered against the universe once. Results are keyed by
+	 * level in the order given.
+	 */
+	public Map<String, EnrichmentResult> enrich(BackgroundIndex index, Collection<String> genes, String... levels) {
+		long[] substrateInputSet = encode(index, genes);
+		
+		LinkedHashMap<String, EnrichmentResult> results = new LinkedHashMap<String, EnrichmentResult>();
+		for (String level : levels)
+			results.put(level, score(index.getLibrary(level), substrateInputSet));
+		return results;
+	}
+	
+	static long[] encode(BackgroundIndex index, Collection<String> genes) {
+		long start = System.nanoTime();
+		long[] substrateInputSet = index.encode(genes);
+		EnrichmentMetrics.record(EnrichmentMetrics.Stage.INPUT_ENCODING, start);
+		EnrichmentMetrics.recordInput(genes.size(), BackgroundLibrary.cardinality(substrateInputSet));
+		return substrateInputSet;
+	}
+	
+	// Scores an input encoded by the index of the library
+	EnrichmentResult score(BackgroundLibrary library, long[] substrateInputSet) {
+		long start = System.nanoTime();
+		EnrichmentResult result = lookup(library, substrateInputSet);
+		EnrichmentMetrics.recordQuery(start);
+		return result;
+	}
+	
+	private EnrichmentResult lookup(BackgroundLibrary library, long[] substrateInputSet) {
+		BackgroundRanks ranks = ranks(library);
+		if (cache == null || cutoff < 1)
+			return score(library, substrateInputSet, ranks, null, null);
+		
+		ResultCache.Key key = new ResultCache.Key(library, ranks != null, substrateInputSet);
+		EnrichmentResult result = cache.get(key);
+		if (result == null) {
+			double[] known = cache.load(key);
+			if (known != null && known.length == library.size()) {
+				result = score(library, substrateInputSet, ranks, known, null);
+				cache.put(key, result, null);
+			}
+			else {
+				double[] pvalues = new double[library.size()];
+				result = score(library, substrateInputSet, ranks, null, pvalues);
+				cache.put(key, result, pvalues);
+			}
+		}
+		return result.ordered(sortBy);
+	}
+	
+	/*
+	 * Scores every kinase that overlaps the input. P-values are taken from known
+	 * if given (by kinase id, as kept by the result cache), otherwise computed and
+	 * recorded in pvalues if given.
+	 */
+	private EnrichmentResult score(BackgroundLibrary library, long[] substrateInputSet, BackgroundRanks ranks, double[] known, double[] pvalues) {
+		int totalInputSubstrates = BackgroundLibrary.cardinality(substrateInputSet);
+		ensureCapacity(library, totalInputSubstrates);
+		
+		long start = System.nanoTime();
+		Hits hits = usePostings(library, totalInputSubstrates) ? postings(library, substrateInputSet, totalInputSubstrates)
+				: intersections(library, substrateInputSet, totalInputSubstrates);
+		
+		// Fisher's test only runs for kinases with hits
+		double[] hitPValues = new double[hits.size];
+		long work = (known == null && pool != null && listener == null) ? work(library, hits, totalInputSubstrates) : 0;
+		if (work >= PARALLEL_WORK) {
+			int split = (int) Math.max(1, hits.size * SPLIT_WORK / work);
+			pool.invoke(new Tests(library, hits, totalInputSubstrates, hitPValues, pvalues, split, 0, hits.size));
+		}
+		else {
+			for (int hit = 0; hit < hits.size; hit++) {
+				int kinase = hits.kinaseIds[hit];
+				if (known != null)
+					hitPValues[hit] = known[kinase];
+				else {
+					hitPValues[hit] = test(library, kinase, hits.overlaps[hit], totalInputSubstrates);
+					if (pvalues != null)
+						pvalues[kinase] = hitPValues[hit];
+				}
+				progress(hit + 1, hits.size);
+			}
+		}
+		
+		EnrichmentMetrics.record(EnrichmentMetrics.Stage.KINASE_TESTS, start);
+		EnrichmentMetrics.recordKinases(hits.visited, hits.size);
+		
+		return result(library, totalInputSubstrates, substrateInputSet, ranks, hits.size, hits.kinaseIds, hits.overlaps, hitPValues);
+	}
+	
+	/*
+	 * Walking the postings of the input substrates costs about their number
+	 * times the mean postings length, intersecting costs a bitset word per kinase
+	 * and word of the universe, which is several times cheaper than a posting.
+	 * Short lists are far cheaper through the postings.
+	 */
+	private static boolean usePostings(BackgroundLibrary library, int inputSize) {
+		double postings = (double) inputSize * library.getEdgeCount() / Math.max(1, library.getUniverseSize());
+		return POSTING_COST * postings < (double) library.size() * BackgroundLibrary.wordsFor(library.getUniverseSize());
+	}
+	
+	// Overlaps accumulated from the inverted index, kinases without hits are never visited
+	private static Hits postings(BackgroundLibrary library, long[] substrateInputSet, int inputSize) {
+		int[] counts = new int[library.size()];
+		Hits hits = new Hits(library.size(), inputSize);
+		IntBuffer offsets = library.getPostingOffsets();
+		IntBuffer postings = library.getPostings();
+		for (int i = 0; i < substrateInputSet.length; i++) {
+			for (long word = substrateInputSet[i]; word != 0; word &= word - 1) {
+				int substrate = (i << 6) + Long.numberOfTrailingZeros(word);
+				for (int posting = offsets.get(substrate); posting < offsets.get(substrate + 1); posting++) {
+					int kinase = postings.get(posting);
+					if (counts[kinase]++ == 0)
+						hits.add(kinase, 0);
+				}
+			}
+		}
+		
+		// Background order, like the intersections
+		Arrays.sort(hits.kinaseIds, 0, hits.size);
+		for (int hit = 0; hit < hits.size; hit++)
+			hits.overlaps[hit] = counts[hits.kinaseIds[hit]];
+		hits.visited = hits.size;
+		return hits;
+	}
+	
+	// Overlap of every kinase with the input, for inputs that cover much of the universe
+	private static Hits intersections(BackgroundLibrary library, long[] substrateInputSet, int inputSize) {
+		Hits hits = new Hits(library.size(), inputSize);
+		// Sparse kinases are intersected with the sorted ids instead of the bitset
+		IntBuffer inputIds = IntBuffer.wrap(BackgroundLibrary.toIds(substrateInputSet, inputSize));
+		for (int kinase = 0; kinase < library.size(); kinase++) {
+			// Target input substrates is the intersection of target background substrates and input substrates
+			int numOfTargetInputSubstrates = library.overlap(kinase, substrateInputSet, inputIds);
+			if (numOfTargetInputSubstrates > 0)
+				hits.add(kinase, numOfTargetInputSubstrates);
+		}
+		hits.visited = library.size();
+		return hits;
+	}
+	
+	// Terms of the hypergeometric tails the Fisher's tests of the hits sum up
+	private static long work(BackgroundLibrary library, Hits hits, int inputSize) {
+		long work = 0;
+		for (int hit = 0; hit < hits.size; hit++)
+			work += 1 + Math.min(library.getKinaseSize(hits.kinaseIds[hit]), inputSize) - hits.overlaps[hit];
+		return work;
+	}
+	
+	// Fisher's tests of the hits [from, to), split in halves down to split hits
+	private final class Tests extends RecursiveAction {
+		
+		private static final long serialVersionUID = -4165730985201738641L;
+		
+		private final BackgroundLibrary library;
+		private final Hits hits;
+		private final int inputSize;
+		private final double[] hitPValues;
+		// By kinase id for the result cache, may be null
+		private final double[] pvalues;
+		private final int split;
+		private final int from, to;
+		
+		Tests(BackgroundLibrary library, Hits hits, int inputSize, double[] hitPValues, double[] pvalues, int split, int from, int to) {
+			this.library = library;
+			this.hits = hits;
+			this.inputSize = inputSize;
+			this.hitPValues = hitPValues;
+			this.pvalues = pvalues;
+			this.split = split;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from > split) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Tests(library, hits, inputSize, hitPValues, pvalues, split, from, middle),
+						new Tests(library, hits, inputSize, hitPValues, pvalues, split, middle, to));
+				return;
+			}
+			
+			for (int hit = from; hit < to; hit++) {
+				int kinase = hits.kinaseIds[hit];
+				hitPValues[hit] = test(library, kinase, hits.overlaps[hit], inputSize);
+				if (pvalues != null)
+					pvalues[kinase] = hitPValues[hit];
+			}
+		}
+	}
+	
+	// Kinases with hits and their overlaps, short lists hit few kinases so the arrays grow as needed
+	private static final class Hits {
+		
+		private final int kinases;
+		private int[] kinaseIds;
+		private int[] overlaps;
+		private int size;
+		// Kinases whose overlap was computed
+		private int visited;
+		
+		Hits(int kinases, int inputSize) {
+			this.kinases = kinases;
+			int capacity = Math.min(kinases, Math.max(INITIAL_HITS, inputSize));
+			kinaseIds = new int[capacity];
+			overlaps = new int[capacity];
+		}
+		
+		void add(int kinase, int overlap) {
+			if (size == kinaseIds.length) {
+				int capacity = Math.min(kinases, 2 * size);
+				kinaseIds = Arrays.copyOf(kinaseIds, capacity);
+				overlaps = Arrays.copyOf(overlaps, capacity);
+			}
+			kinaseIds[size] = kinase;
+			overlaps[size++] = overlap;
+		}
+	}
+	
+	// Incremental scoring of a gene list that is edited in place
+	public EnrichmentSession session(BackgroundLibrary library) {
+		return new EnrichmentSession(this, library);
+	}
+	
+	// Reports every PROGRESS_INTERVAL kinases and the last one, and stops scoring once interrupted
+	void progress(int kinases, int total) {
+		if (listener != null && (kinases % PROGRESS_INTERVAL == 0 || kinases == total)) {
+			if (Thread.currentThread().isInterrupted())
+				throw new CancellationException("Scoring was interrupted");
+			listener.kinasesScored(kinases, total);
+		}
+	}
+	
+	// Read KEA ranks, only worth loading for the rank-based scores unless already there
+	BackgroundRanks ranks(BackgroundLibrary library) {
+		return sortBy.equals(KEA.PVALUE) ? library.getLoadedRanks() : library.getRanks();
+	}
+	
+	void ensureCapacity(BackgroundLibrary library, int inputSize) {
+		fisher.ensureCapacity(inputSize + library.getUniverseSize());
+	}
+	
+	// Fisher exact test of one kinase, after ensureCapacity() for the input size
+	double test(BackgroundLibrary library, int kinase, int overlap, int inputSize) {
+		int totalBgSubstrates = library.getUniverseSize();
+		int numOfTargetBgSubstrates = library.getKinaseSize(kinase);
+		if (cutoff < 1) {
+			double pvalue = fisher.getRightTailedP(overlap, (inputSize - overlap), numOfTargetBgSubstrates, 
+					(totalBgSubstrates - numOfTargetBgSubstrates), cutoff);
+			return (pvalue <= cutoff) ? pvalue : 1;
+		}
+		return fisher.getRightTailedP(overlap, (inputSize - overlap), numOfTargetBgSubstrates, 
+				(totalBgSubstrates - numOfTargetBgSubstrates));
+	}
+	
+	EnrichmentResult result(BackgroundLibrary library, int inputSize, long[] input, BackgroundRanks ranks, int hits, int[] kinaseIds, int[] overlaps, double[] pvalues) {
+		return new EnrichmentResult(library, sortBy, inputSize, input, ranks, hits, kinaseIds, overlaps, pvalues);
+	}
+	
+	// Materialized kinase of a hit, see EnrichmentResult
+	static Kinase kinase(BackgroundLibrary library, int kinase, Set<String> enrichedSubstrates, int inputSize, double pvalue, BackgroundRanks ranks) {
+		int totalBgSubstrates = library.getUniverseSize();
+		int numOfTargetBgSubstrates = library.getKinaseSize(kinase);
+		
+		Kinase currentKinase = new Kinase(library.getKinaseName(kinase), library.getSubstrates(kinase));
+		currentKinase.setEnrichedSubstrates(enrichedSubstrates);
+		currentKinase.setFractionOfSubstratesInInput((double) enrichedSubstrates.size()/inputSize);
+		currentKinase.setFractionOfSubstratesInBackground((double) numOfTargetBgSubstrates/totalBgSubstrates);
+		currentKinase.setPValue(pvalue);
+		if (ranks != null)
+			currentKinase.setRankStats(ranks.getMean(kinase), ranks.getStandardDeviation(kinase));
+		return currentKinase;
+	}
+	
+	static void rank(List<Kinase> kinases, String sortBy) {
+		Collections.sort(kinases, ranking(sortBy));
+	}
+	
+	/*
+	 * Order of the ranked kinases: sorted by p-value, then by combined score or
+	 * z-score if requested, with the p-value deciding ties of the score.
+	 */
+	static Comparator<Kinase> ranking(String sortBy) {
+		if (sortBy.equals(KEA.COMBINED_SCORE)) {
+			// Sort by combined score
+			return new Comparator<Kinase>() {
+				public int compare(Kinase o1, Kinase o2) {
+					if (o1.getCombinedScore() < o2.getCombinedScore())				
+						return 1;
+					else if (o1.getCombinedScore() > o2.getCombinedScore())
+						return -1;
+					else
+						return o1.compareTo(o2);
+				}
+			};
+		}
+		else if (sortBy.equals(KEA.RANK)) {
+			// Sort by z-score
+			return new Comparator<Kinase>() {
+				public int compare(Kinase o1, Kinase o2) {
+					if (o1.getZScore() > o2.getZScore())				
+						return 1;
+					else if (o1.getZScore() < o2.getZScore())
+						return -1;
+					else
+						return o1.compareTo(o2);
+				}
+			};
+		}
+		else {
+			// Sort by p-value
+			return new Comparator<Kinase>() {
+				public int compare(Kinase o1, Kinase o2) {
+					return o1.compareTo(o2);
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/*
+ * Process-wide timings and counters of the enrichment stages, to tell I/O from
+ * statistics when queries get slow. Each stage keeps a lock-free histogram of
+ * its durations with four buckets per power of two, so recording is a couple
+ * of atomic increments and percentiles are within 25% of the true value.
+ * 
+ * The metrics are exposed through JMX (see EnrichmentMetricsMBean) and as a
+ * plain-text dump of "name value" lines, which KEAServer serves on /metrics.
+ */
+public final class EnrichmentMetrics implements EnrichmentMetricsMBean {
+	
+	static Logger log = Logger.getLogger(EnrichmentMetrics.class.getSimpleName());
+	
+	public static final String OBJECT_NAME = "edu.mssm.pharm.maayanlab.KEA:type=EnrichmentMetrics";
+	
+	public enum Stage {
+		// Reading background databases, rank tables and snapshots
+		RESOURCE_LOAD,
+		// Compiling background records into a snapshot, streamed resources are read here too
+		BACKGROUND_PARSE,
+		// Building the kinase sets of all levels from a snapshot
+		INDEX_BUILD,
+		// Loading or generating the rank statistics of a library
+		RANKS_LOAD,
+		// Upper-casing the input and filtering it against the universe
+		INPUT_ENCODING,
+		// Overlaps and Fisher exact tests of all kinases of a library
+		KINASE_TESTS,
+		// Ranking by p-value for the scores and ordering the results
+		SORT,
+		// Writing results with ResultWriter
+		SERIALIZATION,
+		// Whole enrichment of one gene list, including result cache hits
+		QUERY;
+		
+		public String getName() {
+			return name().toLowerCase(Locale.ENGLISH);
+		}
+	}
+	
+	private static final EnrichmentMetrics metrics = new EnrichmentMetrics();
+	
+	static {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+		} catch (Exception e) {
+			log.fine("Metrics are not available through JMX: " + e.getMessage());
+		}
+	}
+	
+	private final Histogram[] histograms = new Histogram[Stage.values().length];
+	
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong inputGenes = new AtomicLong();
+	private final AtomicLong filteredGenes = new AtomicLong();
+	private final AtomicLong kinasesTested = new AtomicLong();
+	private final AtomicLong kinasesWithHits = new AtomicLong();
+	
+	private EnrichmentMetrics() {
+		for (int stage = 0; stage < histograms.length; stage++)
+			histograms[stage] = new Histogram();
+	}
+	
+	public static EnrichmentMetrics get() {
+		return metrics;
+	}
+	
+	// Records the time since start, a System.nanoTime() taken when the stage began
+	public static void record(Stage stage, long start) {
+		metrics.histograms[stage.ordinal()].record(System.nanoTime() - start);
+	}
+	
+	static void recordQuery(long start) {
+		record(Stage.QUERY, start);
+		metrics.queries.incrementAndGet();
+	}
+	
+	static void recordInput(int genes, int filtered) {
+		metrics.inputGenes.addAndGet(genes);
+		metrics.filteredGenes.addAndGet(filtered);
+	}
+	
+	static void recordKinases(int tested, int withHits) {
+		metrics.kinasesTested.addAndGet(tested);
+		metrics.kinasesWithHits.addAndGet(withHits);
+	}
+	
+	public long getQueries() {
+		return queries.get();
+	}
+	
+	// Genes submitted, before filtering against the universe
+	public long getInputGenes() {
+		return inputGenes.get();
+	}
+	
+	// Genes left after filtering against the universe
+	public long getFilteredGenes() {
+		return filteredGenes.get();
+	}
+	
+	public long getKinasesTested() {
+		return kinasesTested.get();
+	}
+	
+	public long getKinasesWithHits() {
+		return kinasesWithHits.get();
+	}
+	
+	public String[] getStages() {
+		String[] stages = new String[histograms.length];
+		for (Stage stage : Stage.values())
+			stages[stage.ordinal()] = stage.getName();
+		return stages;
+	}
+	
+	public long getCount(String stage) {
+		return histogram(stage).getCount();
+	}
+	
+	public double getMeanMillis(String stage) {
+		return histogram(stage).getMean() / 1e6;
+	}
+	
+	public double getPercentileMillis(String stage, double percentile) {
+		return histogram(stage).getPercentile(percentile) / 1e6;
+	}
+	
+	public double getMaximumMillis(String stage) {
+		return histogram(stage).getMaximum() / 1e6;
+	}
+	
+	public String getDump() {
+		StringBuilder dump = new StringBuilder();
+		dump.append("queries ").append(queries.get()).append('\n');
+		dump.append("input_genes ").append(inputGenes.get()).append('\n');
+		dump.append("filtered_genes ").append(filteredGenes.get()).append('\n');
+		dump.append("kinases_tested ").append(kinasesTested.get()).append('\n');
+		dump.append("kinases_with_hits ").append(kinasesWithHits.get()).append('\n');
+		for (Stage stage : Stage.values()) {
+			Histogram histogram = histograms[stage.ordinal()];
+			String name = stage.getName();
+			dump.append(name).append("_count ").append(histogram.getCount()).append('\n');
+			dump.append(name).append("_mean_ms ").append(histogram.getMean() / 1e6).append('\n');
+			dump.append(name).append("_p50_ms ").append(histogram.getPercentile(50) / 1e6).append('\n');
+			dump.append(name).append("_p99_ms ").append(histogram.getPercentile(99) / 1e6).append('\n');
+			dump.append(name).append("_max_ms ").append(histogram.getMaximum() / 1e6).append('\n');
+		}
+		return dump.toString();
+	}
+	
+	public void reset() {
+		for (Histogram histogram : histograms)
+			histogram.reset();
+		queries.set(0);
+		inputGenes.set(0);
+		filteredGenes.set(0);
+		kinasesTested.set(0);
+		kinasesWithHits.set(0);
+	}
+	
+	@Override
+	public String toString() {
+		return getDump();
+	}
+	
+	private Histogram histogram(String stage) {
+		return histograms[Stage.valueOf(stage.toUpperCase(Locale.ENGLISH)).ordinal()];
+	}
+	
+	/*
+	 * Durations in nanoseconds. Values below 8 get a bucket each, larger ones
+	 * fall into one of four equal buckets per power of two.
+	 */
+	static final class Histogram {
+		
+		private static final int BUCKETS = 248;
+		
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong maximum = new AtomicLong();
+		
+		void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			counts.incrementAndGet(bucket(nanos));
+			count.incrementAndGet();
+			total.addAndGet(nanos);
+			
+			long max = maximum.get();
+			while (nanos > max && !maximum.compareAndSet(max, nanos))
+				max = maximum.get();
+		}
+		
+		long getCount() {
+			return count.get();
+		}
+		
+		double getMean() {
+			long n = count.get();
+			return n > 0 ? (double) total.get() / n : 0;
+		}
+		
+		long getMaximum() {
+			return maximum.get();
+		}
+		
+		// Upper bound of the bucket holding the percentile, capped by the maximum
+		long getPercentile(double percentile) {
+			long n = 0;
+			for (int bucket = 0; bucket < BUCKETS; bucket++)
+				n += counts.get(bucket);
+			if (n == 0)
+				return 0;
+			
+			long rank = (long) Math.ceil(percentile / 100 * n);
+			long seen = 0;
+			for (int bucket = 0; bucket < BUCKETS; bucket++) {
+				seen += counts.get(bucket);
+				if (seen >= rank && seen > 0)
+					return Math.min(upperBound(bucket), maximum.get());
+			}
+			return maximum.get();
+		}
+		
+		void reset() {
+			for (int bucket = 0; bucket < BUCKETS; bucket++)
+				counts.set(bucket, 0);
+			count.set(0);
+			total.set(0);
+			maximum.set(0);
+		}
+		
+		static int bucket(long value) {
+			if (value < 8)
+				return (int) value;
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			return (exponent - 1) * 4 + (int) ((value >>> (exponent - 2)) & 3);
+		}
+		
+		static long upperBound(int bucket) {
+			if (bucket < 8)
+				return bucket;
+			int exponent = bucket / 4 + 1;
+			long lower = (long) (4 + bucket % 4) << (exponent - 2);
+			return lower + (1L << (exponent - 2)) - 1;
+		}
+	}
+}
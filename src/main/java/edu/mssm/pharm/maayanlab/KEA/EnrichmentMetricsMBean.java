@@ -0,0 +1,33 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+/*
+ * JMX view of EnrichmentMetrics, registered as
+ * edu.mssm.pharm.maayanlab.KEA:type=EnrichmentMetrics. Stage names are those
+ * of EnrichmentMetrics.Stage in lower case, e.g. "kinase_tests".
+ */
+public interface EnrichmentMetricsMBean {
+	
+	public long getQueries();
+	
+	public long getInputGenes();
+	
+	public long getFilteredGenes();
+	
+	public long getKinasesTested();
+	
+	public long getKinasesWithHits();
+	
+	public String[] getStages();
+	
+	public long getCount(String stage);
+	
+	public double getMeanMillis(String stage);
+	
+	public double getPercentileMillis(String stage, double percentile);
+	
+	public double getMaximumMillis(String stage);
+	
+	public String getDump();
+	
+	public void reset();
+}
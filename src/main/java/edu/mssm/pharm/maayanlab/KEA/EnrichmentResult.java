@@ -0,0 +1,417 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Ranked kinases of one gene list against one background library. A cached
+ * result is handed to every query for the same gene set, so results must be
+ * treated as read-only.
+ * 
+ * Scored kinases (hits) are kept in background order as parallel primitive
+ * arrays of kinase id, overlap, p-value and scores, so a query allocates a few
+ * arrays instead of an object and a substrate set per hit. Kinase objects and
+ * their enriched substrates are only materialized for the kinases a caller
+ * asks for, e.g. the top ranked ones, as new instances on every call so that
+ * callers may change them.
+ * 
+ * Hits are sorted by p-value once when the result is built, which gives the
+ * ranks for the z-scores and the Benjamini-Hochberg and Bonferroni adjusted
+ * p-values, and is the ranking itself when sorting by p-value. Results sorted
+ * by a score are only ranked on demand: getTopRanked() selects the best kinases
+ * with a bounded heap, and the full ranking is sorted once, the first time it
+ * is requested.
+ * 
+ * The scores do not depend on the order, so a result can be viewed in any
+ * other order (see ordered()) without scoring again, and the result cache
+ * keeps one result for all orders.
+ */
+public final class EnrichmentResult {
+	
+	private final static int BY_PVALUE = 0;
+	private final static int BY_COMBINED_SCORE = 1;
+	private final static int BY_ZSCORE = 2;
+	
+	private final BackgroundLibrary library;
+	private final String sortBy;
+	private final int order;
+	
+	// Input genes left after filtering against the background universe, and their encoding
+	private final int inputSize;
+	private final long[] input;
+	private final BackgroundRanks ranks;
+	
+	// By hit, in background order
+	private final int[] kinaseIds;
+	private final int[] overlaps;
+	private final double[] pvalues;
+	private final double[] zscores;
+	private final double[] combinedScores;
+	private final double[] adjustedPValues;
+	private final double[] bonferroniPValues;
+	
+	// Hits in ranked order, sorted on first use
+	private volatile int[] ranked;
+	// Views of the same scores by order, shared by all of them and guarded by the array
+	private final EnrichmentResult[] views;
+	
+	/*
+	 * The first hits entries of the arrays are the scored kinases. Adjusted
+	 * p-values are computed here, and z-scores and combined scores if there are
+	 * ranks.
+	 */
+	EnrichmentResult(BackgroundLibrary library, String sortBy, int inputSize, long[] input, BackgroundRanks ranks, int hits, int[] kinaseIds, int[] overlaps, double[] pvalues) {
+		this.library = library;
+		this.sortBy = sortBy;
+		this.order = order(sortBy);
+		this.inputSize = inputSize;
+		this.input = input;
+		this.ranks = ranks;
+		this.kinaseIds = (kinaseIds.length == hits) ? kinaseIds : Arrays.copyOf(kinaseIds, hits);
+		this.overlaps = (overlaps.length == hits) ? overlaps : Arrays.copyOf(overlaps, hits);
+		this.pvalues = (pvalues.length == hits) ? pvalues : Arrays.copyOf(pvalues, hits);
+		this.zscores = new double[hits];
+		this.combinedScores = new double[hits];
+		this.adjustedPValues = new double[hits];
+		this.bonferroniPValues = new double[hits];
+		
+		long start = System.nanoTime();
+		// Stable sort, ties keep background order like the background permutations
+		int[] byPValue = sort(BY_PVALUE);
+		adjustPValues(byPValue, library.size());
+		if (ranks != null)
+			computeScores(byPValue);
+		if (order == BY_PVALUE)
+			ranked = byPValue;
+		EnrichmentMetrics.record(EnrichmentMetrics.Stage.SORT, start);
+		
+		views = new EnrichmentResult[3];
+		views[order] = this;
+	}
+	
+	// View of the scores of result in another order
+	private EnrichmentResult(EnrichmentResult result, String sortBy) {
+		this.library = result.library;
+		this.sortBy = sortBy;
+		this.order = order(sortBy);
+		this.inputSize = result.inputSize;
+		this.input = result.input;
+		this.ranks = result.ranks;
+		this.kinaseIds = result.kinaseIds;
+		this.overlaps = result.overlaps;
+		this.pvalues = result.pvalues;
+		this.zscores = result.zscores;
+		this.combinedScores = result.combinedScores;
+		this.adjustedPValues = result.adjustedPValues;
+		this.bonferroniPValues = result.bonferroniPValues;
+		this.views = result.views;
+	}
+	
+	private static int order(String sortBy) {
+		return sortBy.equals(KEA.COMBINED_SCORE) ? BY_COMBINED_SCORE : (sortBy.equals(KEA.RANK) ? BY_ZSCORE : BY_PVALUE);
+	}
+	
+	// The same result ranked by sortBy, this one if it already is
+	EnrichmentResult ordered(String sortBy) {
+		int order = order(sortBy);
+		synchronized (views) {
+			if (views[order] == null)
+				views[order] = new EnrichmentResult(this, sortBy);
+			return views[order];
+		}
+	}
+	
+	/*
+	 * Every kinase of the library counts as a test, kinases without hits have a
+	 * p-value of 1 and cannot lower the adjusted p-value of a hit. The
+	 * Benjamini-Hochberg p-value of the hit of rank i is the minimum of
+	 * p * tests / rank over all ranks from i on, capped at 1.
+	 */
+	private void adjustPValues(int[] byPValue, int tests) {
+		double minimum = 1;
+		for (int rank = byPValue.length; rank > 0; rank--) {
+			int hit = byPValue[rank - 1];
+			minimum = Math.min(minimum, pvalues[hit] * tests / rank);
+			adjustedPValues[hit] = minimum;
+			bonferroniPValues[hit] = Math.min(1, pvalues[hit] * tests);
+		}
+	}
+	
+	// Count current rank by p-value and compute z-score and combined score
+	private void computeScores(int[] byPValue) {
+		for (int rank = 0; rank < byPValue.length; rank++) {
+			int hit = byPValue[rank];
+			int kinase = kinaseIds[hit];
+			zscores[hit] = Kinase.zScore(rank + 1, ranks.getMean(kinase), ranks.getStandardDeviation(kinase));
+			combinedScores[hit] = Math.log(pvalues[hit]) * zscores[hit];
+		}
+	}
+	
+	public String getInteractions() {
+		return library.getInteractions();
+	}
+	
+	public String getLevel() {
+		return library.getLevel();
+	}
+	
+	public String getSortBy() {
+		return sortBy;
+	}
+	
+	public int getInputSize() {
+		return inputSize;
+	}
+	
+	public int getUniverseSize() {
+		return library.getUniverseSize();
+	}
+	
+	// Number of kinases with at least one substrate in the input
+	public int size() {
+		return kinaseIds.length;
+	}
+	
+	// Full ranking, sorted on first use and materialized on every call
+	public List<Kinase> getRankedKinases() {
+		int[] hits = getRanking();
+		ArrayList<Kinase> kinases = new ArrayList<Kinase>(hits.length);
+		for (int hit : hits)
+			kinases.add(createKinase(hit));
+		return kinases;
+	}
+	
+	public List<Kinase> getTopRanked(int ranks) {
+		LinkedList<Kinase> topRanked = new LinkedList<Kinase>();
+		for (int hit : getTopHits(ranks))
+			topRanked.add(createKinase(hit));
+		return topRanked;
+	}
+	
+	// Names only, no kinases are materialized
+	public List<String> getTopRankedList(int ranks) {
+		LinkedList<String> topRanked = new LinkedList<String>();
+		for (int hit : getTopHits(ranks))
+			topRanked.add(getName(hit));
+		return topRanked;
+	}
+	
+	/*
+	 * Best ranked kinases with a Benjamini-Hochberg adjusted p-value of at most
+	 * cutoff, a cutoff of 1 or more keeps every kinase.
+	 */
+	public List<Kinase> getTopRanked(int ranks, double cutoff) {
+		if (cutoff >= 1)
+			return getTopRanked(ranks);
+		
+		LinkedList<Kinase> topRanked = new LinkedList<Kinase>();
+		for (int hit : getRanking()) {
+			if (topRanked.size() >= ranks)
+				break;
+			if (adjustedPValues[hit] <= cutoff)
+				topRanked.add(createKinase(hit));
+		}
+		return topRanked;
+	}
+	
+	// Hits in ranked order, for callers that read the primitive columns
+	int[] getRanking() {
+		int[] hits = ranked;
+		if (hits == null) {
+			long start = System.nanoTime();
+			ranked = hits = sort(order);
+			EnrichmentMetrics.record(EnrichmentMetrics.Stage.SORT, start);
+		}
+		return hits;
+	}
+	
+	// The best ranks hits in ranked order
+	int[] getTopHits(int ranks) {
+		if (ranked != null || ranks >= kinaseIds.length) {
+			int[] hits = getRanking();
+			return Arrays.copyOf(hits, Math.max(0, Math.min(ranks, hits.length)));
+		}
+		
+		long start = System.nanoTime();
+		int[] top = selectTop(ranks);
+		EnrichmentMetrics.record(EnrichmentMetrics.Stage.SORT, start);
+		return top;
+	}
+	
+	String getName(int hit) {
+		return library.getKinaseName(kinaseIds[hit]);
+	}
+	
+	int getOverlap(int hit) {
+		return overlaps[hit];
+	}
+	
+	int getKinaseSize(int hit) {
+		return library.getKinaseSize(kinaseIds[hit]);
+	}
+	
+	double getPValue(int hit) {
+		return pvalues[hit];
+	}
+	
+	double getZScore(int hit) {
+		return zscores[hit];
+	}
+	
+	double getCombinedScore(int hit) {
+		return combinedScores[hit];
+	}
+	
+	double getAdjustedPValue(int hit) {
+		return adjustedPValues[hit];
+	}
+	
+	double getBonferroniPValue(int hit) {
+		return bonferroniPValues[hit];
+	}
+	
+	// Names of the input genes that are substrates of the kinase of a hit, a new set on every call
+	Set<String> getEnrichedSubstrates(int hit) {
+		return library.overlappingSubstrates(kinaseIds[hit], input);
+	}
+	
+	// New Kinase of a hit on every call, nothing a caller changes is kept
+	Kinase createKinase(int hit) {
+		int kinase = kinaseIds[hit];
+		Kinase materialized = EnrichmentEngine.kinase(library, kinase, getEnrichedSubstrates(hit), inputSize, pvalues[hit], ranks);
+		materialized.setScores(zscores[hit], combinedScores[hit]);
+		materialized.setAdjustedPValues(adjustedPValues[hit], bonferroniPValues[hit]);
+		return materialized;
+	}
+	
+	// Stable merge sort of all hits, ties keep background order
+	private int[] sort(int order) {
+		int[] hits = new int[kinaseIds.length];
+		for (int hit = 0; hit < hits.length; hit++)
+			hits[hit] = hit;
+		mergeSort(hits, new int[hits.length], 0, hits.length, order);
+		return hits;
+	}
+	
+	private void mergeSort(int[] hits, int[] buffer, int from, int to, int order) {
+		if (to - from < 2)
+			return;
+		int middle = (from + to) >>> 1;
+		mergeSort(hits, buffer, from, middle, order);
+		mergeSort(hits, buffer, middle, to, order);
+		if (compare(hits[middle - 1], hits[middle], order) <= 0)
+			return;
+		
+		System.arraycopy(hits, from, buffer, from, to - from);
+		int left = from;
+		int right = middle;
+		for (int i = from; i < to; i++) {
+			if (right >= to || (left < middle && compare(buffer[left], buffer[right], order) <= 0))
+				hits[i] = buffer[left++];
+			else
+				hits[i] = buffer[right++];
+		}
+	}
+	
+	/*
+	 * Indices of the best ranks hits in ranked order. The root of the heap is
+	 * the worst hit selected so far and is replaced whenever a better one comes
+	 * along, O(n log ranks) instead of sorting all n hits.
+	 */
+	private int[] selectTop(int ranks) {
+		if (ranks <= 0)
+			return new int[0];
+		
+		int[] heap = new int[ranks];
+		int size = 0;
+		for (int hit = 0; hit < kinaseIds.length; hit++) {
+			if (size < ranks) {
+				heap[size] = hit;
+				siftUp(heap, size++);
+			}
+			else if (compareHits(hit, heap[0]) < 0) {
+				heap[0] = hit;
+				siftDown(heap, size);
+			}
+		}
+		
+		// Drain the worst first into the back of the array
+		int[] top = new int[size];
+		for (int i = size - 1; i >= 0; i--) {
+			top[i] = heap[0];
+			heap[0] = heap[i];
+			siftDown(heap, i);
+		}
+		return top;
+	}
+	
+	private void siftUp(int[] heap, int child) {
+		while (child > 0) {
+			int parent = (child - 1) >>> 1;
+			if (compareHits(heap[child], heap[parent]) <= 0)
+				break;
+			swap(heap, child, parent);
+			child = parent;
+		}
+	}
+	
+	private void siftDown(int[] heap, int size) {
+		int parent = 0;
+		while (true) {
+			int worst = parent;
+			int left = 2 * parent + 1;
+			int right = left + 1;
+			if (left < size && compareHits(heap[left], heap[worst]) > 0)
+				worst = left;
+			if (right < size && compareHits(heap[right], heap[worst]) > 0)
+				worst = right;
+			if (worst == parent)
+				break;
+			swap(heap, parent, worst);
+			parent = worst;
+		}
+	}
+	
+	// Ranking order with ties broken by background order, like the stable sort
+	private int compareHits(int hit1, int hit2) {
+		int order = compare(hit1, hit2, this.order);
+		if (order != 0)
+			return order;
+		return hit1 < hit2 ? -1 : (hit1 == hit2 ? 0 : 1);
+	}
+	
+	/*
+	 * Same order as EnrichmentEngine.ranking(): by p-value, or by combined score
+	 * or z-score with the p-value deciding ties of the score.
+	 */
+	private int compare(int hit1, int hit2, int order) {
+		if (order == BY_COMBINED_SCORE) {
+			if (combinedScores[hit1] < combinedScores[hit2])
+				return 1;
+			else if (combinedScores[hit1] > combinedScores[hit2])
+				return -1;
+		}
+		else if (order == BY_ZSCORE) {
+			if (zscores[hit1] > zscores[hit2])
+				return 1;
+			else if (zscores[hit1] < zscores[hit2])
+				return -1;
+		}
+		
+		if (pvalues[hit1] > pvalues[hit2])
+			return 1;
+		else if (pvalues[hit1] < pvalues[hit2])
+			return -1;
+		else
+			return 0;
+	}
+	
+	private static void swap(int[] heap, int i, int j) {
+		int temp = heap[i];
+		heap[i] = heap[j];
+		heap[j] = temp;
+	}
+}
@@ -0,0 +1,145 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.nio.IntBuffer;
+import java.util.Collection;
+
+/*
+ * A gene list that is edited in place and rescored incrementally, e.g. while
+ * an analyst adds or removes a few genes in KEAPanel. The session keeps the
+ * encoded input and the overlap of every kinase with it; adding or removing a
+ * gene only updates the kinases of that substrate, found through the inverted
+ * index of the library, instead of intersecting every kinase with the input.
+ * 
+ * Fisher's test depends on the size of the list though, so when that changes
+ * every kinase with hits is tested again, which is a walk over the shared log
+ * factorial table. Edits that keep the size (e.g. replacing genes through
+ * setGenes) only test the touched kinases again.
+ * 
+ * Sessions are not thread-safe, each one belongs to a single editor. Results
+ * handed out before an edit stay valid.
+ */
+public final class EnrichmentSession {
+	
+	private EnrichmentEngine engine;
+	private final BackgroundLibrary library;
+	private final BackgroundIndex index;
+	
+	private final long[] input;
+	private int inputSize;
+	
+	// By kinase id
+	private final int[] overlaps;
+	private final double[] pvalues;
+	private final boolean[] touched;
+	
+	// Input size of the last scoring, -1 before the first one
+	private int scoredSize = -1;
+	private EnrichmentResult result;
+	
+	EnrichmentSession(EnrichmentEngine engine, BackgroundLibrary library) {
+		this.engine = engine;
+		this.library = library;
+		this.index = library.getIndex();
+		input = new long[BackgroundLibrary.wordsFor(library.getUniverseSize())];
+		overlaps = new int[library.size()];
+		pvalues = new double[library.size()];
+		touched = new boolean[library.size()];
+	}
+	
+	// Follows the scoring of later results instead of the listener the session was created with
+	public void setListener(ProgressListener listener) {
+		engine = engine.withListener(listener);
+	}
+	
+	public BackgroundLibrary getLibrary() {
+		return library;
+	}
+	
+	// Genes of the list that are in the background universe
+	public int getInputSize() {
+		return inputSize;
+	}
+	
+	// False if the gene is not in the background universe or already in the list
+	public boolean add(String gene) {
+		int substrate = index.getSubstrateId(gene);
+		if (substrate < 0 || BackgroundLibrary.get(input, substrate))
+			return false;
+		BackgroundLibrary.set(input, substrate);
+		update(substrate, 1);
+		return true;
+	}
+	
+	// False if the gene is not in the list
+	public boolean remove(String gene) {
+		int substrate = index.getSubstrateId(gene);
+		if (substrate < 0 || !BackgroundLibrary.get(input, substrate))
+			return false;
+		BackgroundLibrary.clear(input, substrate);
+		update(substrate, -1);
+		return true;
+	}
+	
+	// Replaces the list, only the genes that differ from the current list are applied
+	public void setGenes(Collection<String> genes) {
+		long[] target = index.encode(genes);
+		for (int i = 0; i < input.length; i++) {
+			for (long added = target[i] & ~input[i]; added != 0; added &= added - 1)
+				update((i << 6) + Long.numberOfTrailingZeros(added), 1);
+			for (long removed = input[i] & ~target[i]; removed != 0; removed &= removed - 1)
+				update((i << 6) + Long.numberOfTrailingZeros(removed), -1);
+			input[i] = target[i];
+		}
+	}
+	
+	private void update(int substrate, int delta) {
+		inputSize += delta;
+		IntBuffer offsets = library.getPostingOffsets();
+		IntBuffer postings = library.getPostings();
+		for (int posting = offsets.get(substrate); posting < offsets.get(substrate + 1); posting++) {
+			int kinase = postings.get(posting);
+			overlaps[kinase] += delta;
+			touched[kinase] = true;
+		}
+		result = null;
+	}
+	
+	// Ranked result of the current list, rescored on the first call after an edit
+	public EnrichmentResult getResult() {
+		if (result != null)
+			return result;
+		
+		long start = System.nanoTime();
+		BackgroundRanks ranks = engine.ranks(library);
+		engine.ensureCapacity(library, inputSize);
+		boolean resized = inputSize != scoredSize;
+		
+		long testing = System.nanoTime();
+		int[] kinaseIds = new int[overlaps.length];
+		int[] hitOverlaps = new int[overlaps.length];
+		double[] hitPValues = new double[overlaps.length];
+		int hits = 0;
+		int tested = 0;
+		for (int kinase = 0; kinase < overlaps.length; kinase++) {
+			if (overlaps[kinase] > 0) {
+				if (resized || touched[kinase]) {
+					pvalues[kinase] = engine.test(library, kinase, overlaps[kinase], inputSize);
+					tested++;
+				}
+				kinaseIds[hits] = kinase;
+				hitOverlaps[hits] = overlaps[kinase];
+				hitPValues[hits++] = pvalues[kinase];
+			}
+			touched[kinase] = false;
+			engine.progress(kinase + 1, overlaps.length);
+		}
+		scoredSize = inputSize;
+		EnrichmentMetrics.record(EnrichmentMetrics.Stage.KINASE_TESTS, testing);
+		EnrichmentMetrics.recordKinases(tested, hits);
+		
+		// Results materialize their substrates later, from a copy of the list at this point
+		result = engine.result(library, inputSize, input.clone(), ranks, hits, kinaseIds, hitOverlaps, hitPValues);
+		EnrichmentMetrics.recordQuery(start);
+		return result;
+	}
+}
@@ -0,0 +1,119 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.annotations.Expose;
+
+/*
+ * Results of one gene list against several background libraries and their
+ * integrated ranking. Every kinase is ranked by its mean rank over the
+ * libraries it has hits in (the MeanRank integration of KEA3), ties go to the
+ * kinase found in more libraries, then by name. Ranks within a library follow
+ * the sort order the library was scored with.
+ */
+public final class IntegratedResult {
+	
+	// By background, in the order they were requested
+	private final Map<String, EnrichmentResult> results;
+	private volatile List<MeanRank> ranked;
+	
+	IntegratedResult(Map<String, EnrichmentResult> results) {
+		this.results = Collections.unmodifiableMap(results);
+	}
+	
+	public Map<String, EnrichmentResult> getResults() {
+		return results;
+	}
+	
+	public EnrichmentResult getResult(String interactions) {
+		return results.get(interactions);
+	}
+	
+	// Integrated ranking, computed on first use
+	public List<MeanRank> getRankedKinases() {
+		List<MeanRank> kinases = ranked;
+		if (kinases == null) {
+			LinkedHashMap<String, MeanRank> meanRanks = new LinkedHashMap<String, MeanRank>();
+			for (Map.Entry<String, EnrichmentResult> result : results.entrySet()) {
+				int rank = 1;
+				// Names only, no kinases are materialized
+				for (String kinase : result.getValue().getTopRankedList(result.getValue().size())) {
+					MeanRank meanRank = meanRanks.get(kinase);
+					if (meanRank == null) {
+						meanRank = new MeanRank(kinase);
+						meanRanks.put(kinase, meanRank);
+					}
+					meanRank.add(result.getKey(), rank++);
+				}
+			}
+			
+			ArrayList<MeanRank> sorted = new ArrayList<MeanRank>(meanRanks.values());
+			Collections.sort(sorted);
+			ranked = kinases = Collections.unmodifiableList(sorted);
+		}
+		return kinases;
+	}
+	
+	public List<String> getTopRankedList(int ranks) {
+		LinkedList<String> topRanked = new LinkedList<String>();
+		for (MeanRank kinase : getRankedKinases()) {
+			if (topRanked.size() >= ranks)
+				break;
+			topRanked.add(kinase.getName());
+		}
+		return topRanked;
+	}
+	
+	// Rank of a kinase in every library it has hits in
+	public static final class MeanRank implements Comparable<MeanRank> {
+		
+		@Expose
+		private final String name;
+		@Expose
+		private double meanRank;
+		@Expose
+		private final LinkedHashMap<String, Integer> ranks = new LinkedHashMap<String, Integer>();
+		private int rankSum;
+		
+		private MeanRank(String name) {
+			this.name = name;
+		}
+		
+		private void add(String interactions, int rank) {
+			ranks.put(interactions, rank);
+			rankSum += rank;
+			meanRank = (double) rankSum / ranks.size();
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public double getMeanRank() {
+			return meanRank;
+		}
+		
+		// Number of libraries with hits
+		public int getLibraryCount() {
+			return ranks.size();
+		}
+		
+		public Map<String, Integer> getRanks() {
+			return Collections.unmodifiableMap(ranks);
+		}
+		
+		@Override
+		public int compareTo(MeanRank o) {
+			if (meanRank != o.meanRank)
+				return meanRank < o.meanRank ? -1 : 1;
+			if (ranks.size() != o.ranks.size())
+				return ranks.size() > o.ranks.size() ? -1 : 1;
+			return name.compareTo(o.name);
+		}
+	}
+}
@@ -1,53 +1,69 @@
 package edu.mssm.pharm.maayanlab.KEA;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
 import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
-import pal.statistics.FisherExact;
 import edu.mssm.pharm.maayanlab.common.core.FileUtils;
-import edu.mssm.pharm.maayanlab.common.math.SetOps;
 import edu.mssm.pharm.maayanlab.common.core.Settings;
 import edu.mssm.pharm.maayanlab.common.core.SettingsChanger;
 
 public class KEA implements SettingsChanger {
 	
 	static Logger log = Logger.getLogger(KEA.class.getSimpleName());
-
-	private LinkedList<Kinase> kinases;
-
-	private final String PROTEIN_BACKGROUND = "res/kinase-protein_interactions.csv";
-	private final String PHOSPHO_BACKGROUND = "res/phosphorylation_reactions.csv";
-	private final String KEA_2018_BACKGROUND = "res/KEA_2018_KINASES.csv";
-	private final String ARCHS4_BACKGROUND = "res/ARCHS4_KINASES.csv";
-	private final String IPTMNET_BACKGROUND = "res/iPTMnet_kinome_interactions.csv";
-	private final String NETWORK_IN_BACKGROUND = "res/NetworkIN_KINASES.csv";
-	private final String PHOSPHO_ELM_BACKGROUND = "res/Phospho.ELM_KINASES.csv";
-	private final String PHOSPHOPOINT_BACKGROUND = "res/Phosphopoint_KINASES.csv";
-	private final String PHOSPHOPLUS_BACKGROUND = "res/PhosphositePlus_KINASES.csv";
-	private final String MINT_BACKGROUND = "res/MINT_KINASES.csv";
-
-	private final String BACKGROUND_RANKS = "res/kea_ranks.txt";
-	private final String KEA_2018_BACKGROUND_RANKS = "";
-	private final String ARCHS4_BACKGROUND_RANKS = "";
-	private final String IPTMNET_BACKGROUND_RANKS = "res/iptmnet_ranks.txt";
-	private final String NETWORK_IN_BACKGROUND_RANKS = "";
-	private final String PHOSPHO_ELM_BACKGROUND_RANKS = "";
-	private final String PHOSPHOPOINT_BACKGROUND_RANKS = "";
-	private final String PHOSPHOPLUS_BACKGROUND_RANKS = "";
-	private final String MINT_BACKGROUND_RANKS = "";
-
+	
+	private EnrichmentResult result;
+	
+	private static final String PROTEIN_BACKGROUND = "res/kinase-protein_interactions.csv";
+	private static final String PHOSPHO_BACKGROUND = "res/phosphorylation_reactions.csv";
+	private static final String KEA_2018_BACKGROUND = "res/KEA_2018_KINASES.csv";
+	private static final String ARCHS4_BACKGROUND = "res/ARCHS4_KINASES.csv";
+	private static final String IPTMNET_BACKGROUND = "res/iPTMnet_kinome_interactions.csv";
+	private static final String NETWORK_IN_BACKGROUND = "res/NetworkIN_KINASES.csv";
+	private static final String PHOSPHO_ELM_BACKGROUND = "res/Phospho.ELM_KINASES.csv";
+	private static final String PHOSPHOPOINT_BACKGROUND = "res/Phosphopoint_KINASES.csv";
+	private static final String PHOSPHOPLUS_BACKGROUND = "res/PhosphositePlus_KINASES.csv";
+	private static final String MINT_BACKGROUND = "res/MINT_KINASES.csv";
+	
+	private static final String BACKGROUND_RANKS = "res/kea_ranks.txt";
+	private static final String KEA_2018_BACKGROUND_RANKS = "";
+	private static final String ARCHS4_BACKGROUND_RANKS = "";
+	private static final String IPTMNET_BACKGROUND_RANKS = "res/iptmnet_ranks.txt";
+	private static final String NETWORK_IN_BACKGROUND_RANKS = "";
+	private static final String PHOSPHO_ELM_BACKGROUND_RANKS = "";
+	private static final String PHOSPHOPOINT_BACKGROUND_RANKS = "";
+	private static final String PHOSPHOPLUS_BACKGROUND_RANKS = "";
+	private static final String MINT_BACKGROUND_RANKS = "";
+	
 	// Output header
-	protected final String HEADER = "Kinase,Substrates in Input,Substrates in Database,Input Fraction,Database Fraction,Difference,P-value,Z-score,Combined Score,Substrates";
+	protected final String HEADER = ResultWriter.header(",", false);
+	
+	// Opt-in with -Dkea.parallel=true, single large queries are then tested on all cores
+	private static final ForkJoinPool SCORING_POOL = Boolean.getBoolean("kea.parallel") ? new ForkJoinPool() : null;
+	
+	// Command line flag to read input lists from a GMT file
+	public final static String BATCH_FLAG = "-gmt";
+	// Command line flag to run the HTTP enrichment service
+	public final static String SERVER_FLAG = "-server";
 	
 	private final Settings settings = new Settings() {
 		{
@@ -57,6 +73,8 @@ public class KEA implements SettingsChanger {
 			set(KEA.SORT_BY, KEA.COMBINED_SCORE);
 			// String: level of kinase resolution. [kinase-group/kinase-family/kinase]
 			set(KEA.RESOLUTION_LEVEL, KEA.KINASE_LEVEL);
+			// Double: only write kinases with a Benjamini-Hochberg adjusted p-value up to the cutoff, below 1 kinases that cannot reach it are not tested exactly. [0-1]
+			set(KEA.ADJUSTED_PVALUE_CUTOFF, "1");
 		}
 	};
 	
@@ -65,6 +83,7 @@ public class KEA implements SettingsChanger {
 	public final static String SORT_BY = "sort kinases by";
 	public final static String COMBINED_SCORE = "combined score";
 	public final static String RESOLUTION_LEVEL = "resolve kinases down to";
+	public final static String ADJUSTED_PVALUE_CUTOFF = "adjusted p-value cutoff";
 	
 	// Setting values
 	public final static String KINASE_PROTEIN = "kinase-protein interactions only";
@@ -83,9 +102,23 @@ public class KEA implements SettingsChanger {
 	public final static String KINASE_LEVEL = "kinase";
 	public final static String KINASE_FAMILY_LEVEL = "kinase-family";
 	public final static String KINASE_GROUP_LEVEL = "kinase-group";
-
+	
+	// All built-in background databases
+	public final static String[] BACKGROUNDS = {KINASE_PROTEIN, PHOSPHORYLATION, BOTH_TYPES, KEA_2018, ARCHS4, IPTMNET, NETWORK_IN, PHOSPHO_ELM, PHOSPHOPOINT, PHOSPHOPLUS, MINT};
+	
 	public static void main(String[] args) {
-		if (args.length == 2) {
+		if (args.length >= 1 && args[0].equals(SERVER_FLAG)) {
+			try {
+				KEAServer.main(Arrays.copyOfRange(args, 1, args.length));
+			} catch (IOException e) {
+				log.severe("Unable to start server: " + e.getMessage());
+			}
+		}
+		else if (args.length == 3 && args[0].equals(BATCH_FLAG)) {
+			KEA kea = new KEA();
+			kea.runBatch(readGmt(args[1]), args[2]);
+		}
+		else if (args.length == 2) {
 			KEA kea = new KEA();
 			kea.run(args[0]);
 			kea.writeFile(args[1]);
@@ -96,7 +129,7 @@ public class KEA implements SettingsChanger {
 			kea.writeFile(args[2]);
 		}		
 		else
-			log.severe("Usage: java -jar kea.jar [background] genelist output");
+			log.severe("Usage: java -jar kea.jar [background] genelist output\n       java -jar kea.jar " + BATCH_FLAG + " genelists.gmt output\n       java -jar kea.jar " + SERVER_FLAG + " [port [background | name=file...]]");
 	}
 	
 	public KEA() {
@@ -111,12 +144,23 @@ public class KEA implements SettingsChanger {
 		settings.set(key, value);
 	}
 	
+	/*
+	 * Background is a CSV or GMT file, registered under its path without
+	 * watching it and compiled once for all runs against it. Substrates are
+	 * matched as written, see BackgroundRegistry.
+	 */
 	public void run(String background, String geneList) {
 		ArrayList<String> inputList = FileUtils.readFile(geneList);
 		
 		try {
-			if (FileUtils.validateList(inputList))
-				computeEnrichment(FileUtils.readFile(background), inputList);
+			if (FileUtils.validateList(inputList)) {
+				if (!BackgroundRegistry.isRegistered(background))
+					BackgroundRegistry.register(background, new File(background), false);
+				result = getEngine().enrich(background, settings.get(RESOLUTION_LEVEL), inputList);
+			}
+		} catch (IOException e) {
+			log.severe("Unable to read background " + background + ": " + e.getMessage());
+			System.exit(-1);
 		} catch (ParseException e) {
 			if (e.getErrorOffset() == -1)
 				log.warning("Invalid input: " + "Input list is empty.");
@@ -142,238 +186,329 @@ public class KEA implements SettingsChanger {
 	}
 	
 	public void run(Collection<String> genelist) {
-		computeEnrichment(assembleBackgroundDatabase(), genelist);
+		result = getEngine().enrich(settings.get(KINASE_INTERACTIONS), settings.get(RESOLUTION_LEVEL), genelist);
 	}
 	
-	public void writeFile(String filename) {
-		FileUtils.writeFile(filename, HEADER, kinases);
+	// Scores the gene list at each of the given levels of kinase resolution, ignoring the resolution setting
+	public Map<String, EnrichmentResult> run(Collection<String> genelist, String... levels) {
+		return getEngine().enrich(BackgroundCache.getIndex(settings.get(KINASE_INTERACTIONS)), genelist, levels);
 	}
-
-	public Collection<Kinase> getTopRanked(int ranks) {
-		LinkedList<Kinase> topRanked = new LinkedList<Kinase>();
+	
+	/*
+	 * Scores the gene list against each of the backgrounds at once, at the level
+	 * and sort order of the current settings, and integrates the rankings by mean
+	 * rank. The ranked list of this instance is left untouched.
+	 */
+	public IntegratedResult runLibraries(Collection<String> genelist, String... backgrounds) {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(backgrounds.length, Runtime.getRuntime().availableProcessors())));
+		try {
+			return getEngine().enrich(Arrays.asList(backgrounds), settings.get(RESOLUTION_LEVEL), genelist, executor);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	// Session for editing a gene list against the background and level of the current settings
+	public EnrichmentSession newSession() {
+		return newSession(settings.get(KINASE_INTERACTIONS), null);
+	}
+	
+	/*
+	 * Session against any background at the level of the current settings. If
+	 * listener is not null, it follows parsing and scoring and the session can
+	 * be cancelled by interrupting its thread.
+	 */
+	public EnrichmentSession newSession(String interactions, ProgressListener listener) {
+		BackgroundIndex index = BackgroundCache.getIndex(interactions, listener);
+		return getEngine().withListener(listener).session(index.getLibrary(settings.get(RESOLUTION_LEVEL)));
+	}
+	
+	// Rescores only what changed between the last gene list of the session and this one
+	public void run(EnrichmentSession session, Collection<String> genelist) {
+		session.setGenes(genelist);
+		result = session.getResult();
+	}
+	
+	// Engine configured with the current settings, can be shared between threads and
+	// answers repeated gene lists from the shared ResultCache unless it screens at a cutoff
+	public EnrichmentEngine getEngine() {
+		EnrichmentEngine engine = new EnrichmentEngine(settings.get(SORT_BY), ResultCache.getShared());
+		// Adjusted p-values are never below the raw ones, so kinases above the cutoff are never written
+		double cutoff = Double.parseDouble(settings.get(ADJUSTED_PVALUE_CUTOFF));
+		if (cutoff < 1)
+			engine = engine.withCutoff(cutoff);
+		return (SCORING_POOL == null) ? engine : engine.withPool(SCORING_POOL);
+	}
+	
+	public EnrichmentResult getResult() {
+		return result;
+	}
+	
+	/*
+	 * Scores every gene list against the same background, loaded once, using
+	 * all available cores. Results are returned in the iteration order of
+	 * geneLists and the ranked list of this instance is left untouched.
+	 */
+	public Map<String, EnrichmentResult> runBatch(Map<String, ? extends Collection<String>> geneLists) {
+		final BackgroundLibrary library = BackgroundCache.get(settings.get(KINASE_INTERACTIONS), settings.get(RESOLUTION_LEVEL));
+		final EnrichmentEngine engine = getEngine();
 		
-		Iterator<Kinase> itr = kinases.iterator();
-		while (itr.hasNext() && topRanked.size() < ranks)
-			topRanked.add(itr.next());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(geneLists.size(), Runtime.getRuntime().availableProcessors())));
+		try {
+			LinkedHashMap<String, Future<EnrichmentResult>> futures = new LinkedHashMap<String, Future<EnrichmentResult>>();
+			for (final Map.Entry<String, ? extends Collection<String>> geneList : geneLists.entrySet()) {
+				futures.put(geneList.getKey(), executor.submit(new Callable<EnrichmentResult>() {
+					public EnrichmentResult call() {
+						return engine.enrich(library, geneList.getValue());
+					}
+				}));
+			}
+			
+			LinkedHashMap<String, EnrichmentResult> results = new LinkedHashMap<String, EnrichmentResult>();
+			for (Map.Entry<String, Future<EnrichmentResult>> future : futures.entrySet())
+				results.put(future.getKey(), future.getValue().get());
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while running batch", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Batch enrichment failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/*
+	 * Streams the results of a batch run into one file, CSV unless the file
+	 * ends in .tsv or .json, with the gene list name as the first column. Only
+	 * a window of results proportional to the number of cores is held in
+	 * memory; each is written, in input order, as soon as it is done.
+	 */
+	public void runBatch(Map<String, ? extends Collection<String>> geneLists, String filename) {
+		try (ResultWriter writer = openWriter(filename, true)) {
+			runBatch(geneLists, writer);
+		} catch (IOException e) {
+			log.severe("Unable to write " + filename + ": " + e.getMessage());
+		}
+	}
+	
+	public void runBatch(Map<String, ? extends Collection<String>> geneLists, ResultWriter writer) throws IOException {
+		final BackgroundLibrary library = BackgroundCache.get(settings.get(KINASE_INTERACTIONS), settings.get(RESOLUTION_LEVEL));
+		final EnrichmentEngine engine = getEngine();
 		
-		return topRanked;
+		int threads = Math.max(1, Math.min(geneLists.size(), Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayDeque<String> names = new ArrayDeque<String>();
+			ArrayDeque<Future<EnrichmentResult>> pending = new ArrayDeque<Future<EnrichmentResult>>();
+			Iterator<? extends Map.Entry<String, ? extends Collection<String>>> itr = geneLists.entrySet().iterator();
+			
+			while (itr.hasNext() || !pending.isEmpty()) {
+				// Keep every core busy with a small backlog
+				while (itr.hasNext() && pending.size() < 2 * threads) {
+					final Map.Entry<String, ? extends Collection<String>> geneList = itr.next();
+					names.add(geneList.getKey());
+					pending.add(executor.submit(new Callable<EnrichmentResult>() {
+						public EnrichmentResult call() {
+							return engine.enrich(library, geneList.getValue());
+						}
+					}));
+				}
+				writer.write(names.poll(), pending.poll().get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while running batch", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Batch enrichment failed", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	// CSV unless the file ends in .tsv or .json
+	public void writeFile(String filename) {
+		try (ResultWriter writer = openWriter(filename, false)) {
+			writer.write(result);
+		} catch (IOException e) {
+			log.severe("Unable to write " + filename + ": " + e.getMessage());
+		}
+	}
+	
+	// Writes the results of a batch run into one file with the gene list name as the first column
+	public void writeBatchFile(String filename, Map<String, EnrichmentResult> results) {
+		try (ResultWriter writer = openWriter(filename, true)) {
+			for (Map.Entry<String, EnrichmentResult> result : results.entrySet())
+				writer.write(result.getKey(), result.getValue());
+		} catch (IOException e) {
+			log.severe("Unable to write " + filename + ": " + e.getMessage());
+		}
+	}
+	
+	// Writer skipping kinases above the adjusted p-value cutoff of the settings
+	ResultWriter openWriter(String filename, boolean batch) throws IOException {
+		ResultWriter writer = ResultWriter.open(filename, batch);
+		writer.setCutoff(Double.parseDouble(settings.get(ADJUSTED_PVALUE_CUTOFF)));
+		return writer;
+	}
+	
+	/*
+	 * Reads gene lists from a GMT file: one list per line, tab-separated, with
+	 * the list name, a description and then the genes. Invalid lists are skipped.
+	 */
+	public static Map<String, List<String>> readGmt(String filename) {
+		LinkedHashMap<String, List<String>> geneLists = new LinkedHashMap<String, List<String>>();
+		for (String line : FileUtils.readFile(filename)) {
+			String[] fields = line.split("\t");
+			if (fields.length < 3)
+				continue;
+			
+			ArrayList<String> genes = new ArrayList<String>();
+			for (int i = 2; i < fields.length; i++)
+				if (!fields[i].trim().isEmpty())
+					genes.add(fields[i].trim());
+			
+			try {
+				if (FileUtils.validateList(genes))
+					geneLists.put(fields[0], genes);
+			} catch (ParseException e) {
+				if (e.getErrorOffset() == -1)
+					log.warning("Invalid input: " + fields[0] + " is empty.");
+				else
+					log.warning("Invalid input: " + e.getMessage() + " in " + fields[0] + " is not a valid Entrez Gene Symbol.");
+			}
+		}
+		return geneLists;
+	}
+	
+	public Collection<Kinase> getTopRanked(int ranks) {
+		return result.getTopRanked(ranks);
 	}
 	
 	public Collection<String> getTopRankedList(int ranks) {
-		LinkedList<String> topRanked = new LinkedList<String>();
-		
-		Iterator<Kinase> itr = kinases.iterator();
-		while (itr.hasNext() && topRanked.size() < ranks)
-			topRanked.add(itr.next().getName());
-		
-		return topRanked;
+		return result.getTopRankedList(ranks);
 	}
 	
 	// For internal use to get ranked list of kinase names
 	public Collection<Kinase> getRankedList() {
-		return kinases;
+		return result.getRankedKinases();
 	}
 	
 	@Deprecated
 	// For internal use to get ranked list of kinase names
 	protected Collection<Kinase> getTopRankedList() {
-		return kinases;
+		return result.getRankedKinases();
 	}
 	
-	private ArrayList<String> assembleBackgroundDatabase() {
-		ArrayList<String> background;
-		
-		if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.KINASE_PROTEIN)) {
-			background = FileUtils.readResource(PROTEIN_BACKGROUND);
-		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.PHOSPHORYLATION)) {
-			background = FileUtils.readResource(PHOSPHO_BACKGROUND);
-		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.KEA_2018)) {
-			background = FileUtils.readResource(KEA_2018_BACKGROUND);
-		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.ARCHS4)) {
-			background = FileUtils.readResource(ARCHS4_BACKGROUND);
-		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.IPTMNET)) {
-			background = FileUtils.readResource(IPTMNET_BACKGROUND);
-		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.NETWORK_IN)) {
-			background = FileUtils.readResource(NETWORK_IN_BACKGROUND);
-		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.PHOSPHO_ELM)) {
-			background = FileUtils.readResource(PHOSPHO_ELM_BACKGROUND);
-		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.PHOSPHOPOINT)) {
-			background = FileUtils.readResource(PHOSPHOPOINT_BACKGROUND);
-		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.PHOSPHOPLUS)) {
-			background = FileUtils.readResource(PHOSPHOPLUS_BACKGROUND);
+	// Resources holding the background records, compiled once per library by the BackgroundCache
+	static String[] backgroundResources(String interactions) {
+		if (interactions.equals(KEA.KINASE_PROTEIN))
+			return new String[] { PROTEIN_BACKGROUND };
+		else if (interactions.equals(KEA.PHOSPHORYLATION))
+			return new String[] { PHOSPHO_BACKGROUND };
+		else if (interactions.equals(KEA.KEA_2018))
+			return new String[] { KEA_2018_BACKGROUND };
+		else if (interactions.equals(KEA.ARCHS4))
+			return new String[] { ARCHS4_BACKGROUND };
+		else if (interactions.equals(KEA.IPTMNET))
+			return new String[] { IPTMNET_BACKGROUND };
+		else if (interactions.equals(KEA.NETWORK_IN))
+			return new String[] { NETWORK_IN_BACKGROUND };
+		else if (interactions.equals(KEA.PHOSPHO_ELM))
+			return new String[] { PHOSPHO_ELM_BACKGROUND };
+		else if (interactions.equals(KEA.PHOSPHOPOINT))
+			return new String[] { PHOSPHOPOINT_BACKGROUND };
+		else if (interactions.equals(KEA.PHOSPHOPLUS))
+			return new String[] { PHOSPHOPLUS_BACKGROUND };
+		else if (interactions.equals(KEA.MINT))
+			return new String[] { MINT_BACKGROUND };
+		else
+			return new String[] { PROTEIN_BACKGROUND, PHOSPHO_BACKGROUND };
+	}
+	
+	// Opens a bundled resource from the classpath, or from the working directory like FileUtils.readResource
+	static InputStream openResource(String resource) throws IOException {
+		InputStream in = KEA.class.getClassLoader().getResourceAsStream(resource);
+		return (in == null) ? new FileInputStream(resource) : in;
+	}
+	
+	// Size of a bundled resource in bytes, -1 if it is not known
+	static long resourceLength(String resource) {
+		try {
+			URLConnection connection = connectResource(resource);
+			if (connection == null)
+				return -1;
+			long length = connection.getContentLengthLong();
+			// Connecting to file and jar URLs opens the resource
+			connection.getInputStream().close();
+			return length;
+		} catch (IOException e) {
+			return -1;
 		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.MINT)) {
-			background = FileUtils.readResource(MINT_BACKGROUND);
+	}
+	
+	// Modification time of a bundled resource, 0 if it is not known
+	static long resourceLastModified(String resource) {
+		try {
+			URLConnection connection = connectResource(resource);
+			if (connection == null)
+				return 0;
+			long lastModified = connection.getLastModified();
+			connection.getInputStream().close();
+			return lastModified;
+		} catch (IOException e) {
+			return 0;
 		}
-		else {
-			background = FileUtils.readResource(PROTEIN_BACKGROUND);
-			background.addAll(FileUtils.readResource(PHOSPHO_BACKGROUND));
+	}
+	
+	// Connection to a bundled resource or else to the file of that name, null if neither exists
+	private static URLConnection connectResource(String resource) throws IOException {
+		URL url = KEA.class.getClassLoader().getResource(resource);
+		if (url == null) {
+			File file = new File(resource);
+			if (!file.isFile())
+				return null;
+			url = file.toURI().toURL();
 		}
-
-		return background;
+		return url.openConnection();
 	}
 	
-	private ArrayList<String> assembleBackgroundRanks() {
-		ArrayList<String> kea_ranks;
-
-		if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.KEA_2018)) {
-			kea_ranks = FileUtils.readResource(KEA_2018_BACKGROUND_RANKS);
+	// Bundled kinase-level rank statistics, null if the background has none
+	static ArrayList<String> assembleBackgroundRanks(String interactions) {
+		String kea_ranks;
+		
+		if (interactions.equals(KEA.KEA_2018)) {
+			kea_ranks = KEA_2018_BACKGROUND_RANKS;
 		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.ARCHS4)) {
-			kea_ranks = FileUtils.readResource(ARCHS4_BACKGROUND_RANKS);
+		else if (interactions.equals(KEA.ARCHS4)) {
+			kea_ranks = ARCHS4_BACKGROUND_RANKS;
 		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.IPTMNET)) {
-			kea_ranks = FileUtils.readResource(IPTMNET_BACKGROUND_RANKS);
+		else if (interactions.equals(KEA.IPTMNET)) {
+			kea_ranks = IPTMNET_BACKGROUND_RANKS;
 		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.NETWORK_IN)) {
-			kea_ranks = FileUtils.readResource(NETWORK_IN_BACKGROUND_RANKS);
+		else if (interactions.equals(KEA.NETWORK_IN)) {
+			kea_ranks = NETWORK_IN_BACKGROUND_RANKS;
 		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.PHOSPHO_ELM)) {
-			kea_ranks = FileUtils.readResource(PHOSPHO_ELM_BACKGROUND_RANKS);
+		else if (interactions.equals(KEA.PHOSPHO_ELM)) {
+			kea_ranks = PHOSPHO_ELM_BACKGROUND_RANKS;
 		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.PHOSPHOPOINT)) {
-			kea_ranks = FileUtils.readResource(PHOSPHOPOINT_BACKGROUND_RANKS);
+		else if (interactions.equals(KEA.PHOSPHOPOINT)) {
+			kea_ranks = PHOSPHOPOINT_BACKGROUND_RANKS;
 		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.PHOSPHOPLUS)) {
-			kea_ranks = FileUtils.readResource(PHOSPHOPLUS_BACKGROUND_RANKS);
+		else if (interactions.equals(KEA.PHOSPHOPLUS)) {
+			kea_ranks = PHOSPHOPLUS_BACKGROUND_RANKS;
 		}
-		else if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.MINT)) {
-			kea_ranks = FileUtils.readResource(MINT_BACKGROUND_RANKS);
+		else if (interactions.equals(KEA.MINT)) {
+			kea_ranks = MINT_BACKGROUND_RANKS;
 		}
 		else /* if (settings.get(KEA.KINASE_INTERACTIONS).equals(KEA.KEA_2018)) */ {
-			kea_ranks = FileUtils.readResource(BACKGROUND_RANKS);
+			kea_ranks = BACKGROUND_RANKS;
 			// Phospho, Phosphopoint, PhosphositePlus, and MINT combined ??
 		}
-
-		return kea_ranks;
-	}
-	
-	private void computeEnrichment(ArrayList<String> background, Collection<String> genes) {
-		
-		// Determine level of kinase resolution (0-level: kinase-group, 1-level: kinase family: 2-level: kinase)
-		int level;
-		if (settings.get(RESOLUTION_LEVEL).equals(KINASE_GROUP_LEVEL))
-			level = 0;
-		else if (settings.get(RESOLUTION_LEVEL).equals(KINASE_FAMILY_LEVEL))
-			level = 1;
-		else
-			level = 2;
-		
-		// parse background
-		HashMap<String, Kinase> kinaseMap = new HashMap<String, Kinase>();
-		for (String record: background) {
-			String[] splitRecord = record.split(",");
-			String name = splitRecord[level];
-			String target = splitRecord[3];
-			
-			if (kinaseMap.containsKey(name)) {
-				kinaseMap.get(name).addSubstrate(target);
-			}
-			else {
-				kinaseMap.put(name, new Kinase(name, target));
-			}
-		}
-		
-		// read KEA ranks
-		// ArrayList<String> kea_ranks = assembleBackgroundRanks();
-		// for (String kinase_rank : kea_ranks) {
-		// 	String[] splitLine = kinase_rank.split("\\s");
-		// 	if (kinaseMap.containsKey(splitLine[0]))
-		// 		kinaseMap.get(splitLine[0]).setRankStats(Double.parseDouble(splitLine[1]), Double.parseDouble(splitLine[2]));
-		// }
-		
-		kinases = new LinkedList<Kinase>(kinaseMap.values());
-		
-		// filter substrates from input list that are not associated with an upstream kinase
-		Set<String> substrateInputSet = new HashSet<String>();
-		for (String substrate : genes) {
-			substrateInputSet.add(substrate.toUpperCase());
-		}
-		Set<String> substrateBgSet = new HashSet<String>();
-		for (Kinase kinase : kinases) {
-			substrateBgSet.addAll(kinase.getSubstrates());
-		}
-		substrateInputSet.retainAll(substrateBgSet);
 		
-		ListIterator<Kinase> kinaseIterator = kinases.listIterator();
-		
-		while(kinaseIterator.hasNext()) {
-			Kinase currentKinase = kinaseIterator.next();
-			
-			Set<String> targetBgSubstrates = currentKinase.getSubstrates();
-			// Target input substrates is the intersection of target background substrates and input substrates
-			Set<String> targetInputSubstrates = SetOps.intersection(targetBgSubstrates, substrateInputSet);
-			
-			double numOfTargetBgSubstrates = targetBgSubstrates.size();
-			double totalBgSubstrates = substrateBgSet.size();
-			double totalInputSubstrates = substrateInputSet.size();
-			double numOfTargetInputSubstrates = targetInputSubstrates.size();
-
-			if (targetInputSubstrates.size() > 0) {
-
-				FisherExact fisher = new FisherExact(targetInputSubstrates.size()
-						+ (substrateInputSet.size() - targetInputSubstrates.size())
-						+ targetBgSubstrates.size()
-						+ (substrateBgSet.size() - targetBgSubstrates.size()));
-				
-				double pvalue = fisher.getRightTailedP(targetInputSubstrates.size(),
-						(substrateInputSet.size() - targetInputSubstrates.size()), targetBgSubstrates.size(), 
-						(substrateBgSet.size() - targetBgSubstrates.size()));
-				
-				currentKinase.setEnrichedSubstrates(targetInputSubstrates);
-				currentKinase.setFractionOfSubstratesInInput(numOfTargetInputSubstrates/totalInputSubstrates);
-				currentKinase.setFractionOfSubstratesInBackground(numOfTargetBgSubstrates/totalBgSubstrates);
-				currentKinase.setPValue(pvalue);
-			}
-			else {
-				kinaseIterator.remove();
-			}
-		}
-		
-		// First, sort by p-value
-		Collections.sort(kinases);
-		
-		// Count current rank and compute z-score
-		// int counter = 1;
-		// for (Kinase kinase : kinases) {
-		// 	kinase.computeScore(counter);
-		// 	counter++;
-		// }
-		
-		if (settings.get(SORT_BY).equals(COMBINED_SCORE)) {
-			// Sort by combined score
-			Collections.sort(kinases, new Comparator<Kinase>() {
-				public int compare(Kinase o1, Kinase o2) {
-					if (o1.getCombinedScore() < o2.getCombinedScore())				
-						return 1;
-					else if (o1.getCombinedScore() > o2.getCombinedScore())
-						return -1;
-					else
-						return 0;
-				}
-			});
-		}
-		else if (settings.get(SORT_BY).equals(RANK)) {
-			// Sort by z-score
-			Collections.sort(kinases, new Comparator<Kinase>() {
-				public int compare(Kinase o1, Kinase o2) {
-					if (o1.getZScore() > o2.getZScore())				
-						return 1;
-					else if (o1.getZScore() < o2.getZScore())
-						return -1;
-					else
-						return 0;
-				}
-			});
-		}
+		if (kea_ranks.isEmpty())
+			return null;
+		return FileUtils.readResource(kea_ranks);
 	}
 	
 }
@@ -5,10 +5,24 @@ import java.awt.Dimension;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,12 +34,16 @@ import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.UIManager;
 
 import edu.mssm.pharm.maayanlab.common.core.FileUtils;
@@ -47,12 +65,24 @@ public class KEAPanel extends JPanel {
 	private JTextField openPath, savePath;
 	private JTextArea inputTextArea, outputTextArea;
 	private JButton openButton, runButton;
-	private JComboBox interactionsCombo, sortByCombo, miningLevelCombo;
+	private JList<String> interactionsList;
+	private JComboBox sortByCombo, miningLevelCombo;
 	private JTextField selectTopText;
+	private JProgressBar progressBar;
+	
+	private static final String RUN = "Find Kinases";
+	private static final String CANCEL = "Cancel";
 
 	// Output
 	private String output;
 	
+	// Gene list sessions of the last run by background, and the settings they were created for
+	private Map<String, EnrichmentSession> sessions = new ConcurrentHashMap<String, EnrichmentSession>();
+	private String sessionSettings;
+	
+	// Search in progress
+	private EnrichmentWorker worker;
+	
 	public static void main(String[] args) {
 
 		if (args.length == 0) {			
@@ -182,22 +212,50 @@ public class KEAPanel extends JPanel {
 			}
 		});
 		
-		// Start button
-		runButton = new JButton("Find Kinases");
+		// Start button, cancels the running search while there is one
+		runButton = new JButton(RUN);
 		runButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
+				if (worker != null && !worker.isDone()) {
+					worker.cancel(true);
+					// Tasks of the cancelled search may still be using their sessions
+					sessions = new ConcurrentHashMap<String, EnrichmentSession>();
+					return;
+				}
+				
 				output = savePath.getText();
 				ArrayList<String> inputList = UIUtils.getTextAreaText(inputTextArea);
 				
 				try {
 					if (!output.equals("") && FileUtils.validateList(inputList)) {
-						KEA kea = new KEA();
+						List<String> libraries = interactionsList.getSelectedValuesList();
+						if (libraries.isEmpty()) {
+							JOptionPane.showMessageDialog(panel, "No background database selected.", "No Background", JOptionPane.WARNING_MESSAGE);
+							return;
+						}
 						
+						KEA kea = new KEA();
 						setSettings(kea);
-						kea.run(inputList);
-						UIUtils.setTextAreaText(outputTextArea, kea.getTopRankedList(Integer.parseInt(selectTopText.getText())));
-						kea.writeFile(output);
-						enableOutput(output);
+						
+						// Edits of the same list against the same settings are rescored incrementally
+						String settings = sortByCombo.getSelectedIndex() + "," + miningLevelCombo.getSelectedIndex();
+						if (!settings.equals(sessionSettings)) {
+							sessions.clear();
+							sessionSettings = settings;
+						}
+						
+						outputTextArea.setText("");
+						progressBar.setValue(0);
+						runButton.setText(CANCEL);
+						openButton.setEnabled(false);
+						worker = new EnrichmentWorker(kea, sessions, libraries, inputList, Integer.parseInt(selectTopText.getText()), output);
+						worker.addPropertyChangeListener(new PropertyChangeListener() {
+							public void propertyChange(PropertyChangeEvent evt) {
+								if (evt.getPropertyName().equals("progress"))
+									progressBar.setValue((Integer) evt.getNewValue());
+							}
+						});
+						worker.execute();
 					}
 					else {
 						JOptionPane.showMessageDialog(panel, "No save location specified.", "No Save Location", JOptionPane.WARNING_MESSAGE);
@@ -210,16 +268,19 @@ public class KEAPanel extends JPanel {
 				}
 			}
 		});
+		progressBar = new JProgressBar(0, 100);
 		
 		// Advanced Settings
 		JLabel interactionsLabel1 = new JLabel("Include");
-		String[] interactionsOptions = {"kinase-protein interactions", "phosphorylation reactions", "kinase-protein and phosphorylation interactions"};
-		interactionsCombo = new JComboBox(interactionsOptions);
-		interactionsCombo.setSelectedIndex(2);
-		JLabel interactionsLabel2 = new JLabel("in the background database");
+		// Several background databases are searched at once, ctrl-click to select more
+		interactionsList = new JList<String>(KEA.BACKGROUNDS);
+		interactionsList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+		interactionsList.setVisibleRowCount(3);
+		interactionsList.setSelectedIndex(2);
+		JLabel interactionsLabel2 = new JLabel("as background databases");
 		JPanel interactionsBox = new JPanel();
 		interactionsBox.add(interactionsLabel1);
-		interactionsBox.add(interactionsCombo);
+		interactionsBox.add(new JScrollPane(interactionsList));
 		interactionsBox.add(interactionsLabel2);
 		
 		JLabel sortByLabel = new JLabel("Sort by");
@@ -265,6 +326,7 @@ public class KEAPanel extends JPanel {
 		buttonBox.setLayout(new BoxLayout(buttonBox, BoxLayout.LINE_AXIS));
 		buttonBox.add(runButton);
 		buttonBox.add(openButton);
+		buttonBox.add(progressBar);
 		
 		// Advanced settings box
 		JPanel advancedSettingsBox = new JPanel();
@@ -283,11 +345,9 @@ public class KEAPanel extends JPanel {
 	}
 	
 	public void setSettings(SettingsChanger changer) {
-		switch (interactionsCombo.getSelectedIndex()) {
-		case 0: changer.setSetting(KEA.KINASE_INTERACTIONS, KEA.KINASE_PROTEIN); break;
-		case 1: changer.setSetting(KEA.KINASE_INTERACTIONS, KEA.PHOSPHORYLATION); break;
-		case 2: changer.setSetting(KEA.KINASE_INTERACTIONS, KEA.BOTH_TYPES); break;
-		}
+		// The first of the selected backgrounds
+		if (!interactionsList.isSelectionEmpty())
+			changer.setSetting(KEA.KINASE_INTERACTIONS, interactionsList.getSelectedValue());
 		switch (sortByCombo.getSelectedIndex()) {
 		case 0: changer.setSetting(KEA.SORT_BY, KEA.PVALUE); break;
 		case 1: changer.setSetting(KEA.SORT_BY, KEA.RANK); break;
@@ -320,8 +380,166 @@ public class KEAPanel extends JPanel {
 	
 	public void enableOutput(String output) {
 		savePath.setText(output);
+		enableOpen(output);
+	}
+	
+	// Lets View Results open the file without changing the save location
+	private void enableOpen(String output) {
 		this.output = output;
 		if (Desktop.isDesktopSupported() && Desktop.getDesktop().isSupported(Desktop.Action.OPEN))
 			openButton.setEnabled(true);
 	}
-}
\ No newline at end of file
+	
+	// Output file of one of several backgrounds, e.g. genes.csv becomes genes.ARCHS4.csv
+	static String outputFor(String output, String interactions) {
+		String name = interactions.replaceAll("[^A-Za-z0-9._-]", "_");
+		int extension = output.lastIndexOf('.');
+		if (extension <= output.lastIndexOf(File.separatorChar))
+			return output + "." + name;
+		return output.substring(0, extension) + "." + name + output.substring(extension);
+	}
+	
+	/*
+	 * Searches the selected backgrounds off the EDT, one task per background on
+	 * a thread pool. The top kinases of a background are appended to the output
+	 * area as soon as its results are written, and the progress bar follows
+	 * parsing (first half) and scoring (second half) of all backgrounds.
+	 * Cancelling interrupts the tasks, which stop at their next progress report.
+	 */
+	private class EnrichmentWorker extends SwingWorker<List<String>, String> {
+		
+		private final KEA kea;
+		private final Map<String, EnrichmentSession> sessions;
+		private final List<String> libraries;
+		private final Collection<String> genes;
+		private final int top;
+		private final String output;
+		
+		// Per mille done by background
+		private final AtomicIntegerArray progress;
+		private final List<String> failures = new ArrayList<String>();
+		// Files written so far, in order of completion, kept when the search is cancelled
+		private final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+		
+		EnrichmentWorker(KEA kea, Map<String, EnrichmentSession> sessions, List<String> libraries, Collection<String> genes, int top, String output) {
+			this.kea = kea;
+			this.sessions = sessions;
+			this.libraries = libraries;
+			this.genes = genes;
+			this.top = top;
+			this.output = output;
+			progress = new AtomicIntegerArray(libraries.size());
+		}
+		
+		// Files written, in order of completion
+		@Override
+		protected List<String> doInBackground() throws InterruptedException {
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(libraries.size(), Runtime.getRuntime().availableProcessors()));
+			CompletionService<String> completion = new ExecutorCompletionService<String>(pool);
+			try {
+				for (int i = 0; i < libraries.size(); i++) {
+					final int library = i;
+					completion.submit(new Callable<String>() {
+						public String call() throws IOException {
+							return search(library);
+						}
+					});
+				}
+				
+				for (int i = 0; i < libraries.size(); i++) {
+					try {
+						completion.take().get();
+					} catch (ExecutionException e) {
+						log.warning("Search failed: " + e.getCause());
+						synchronized (failures) {
+							failures.add(String.valueOf(e.getCause().getMessage()));
+						}
+					}
+				}
+				return written;
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		
+		private String search(final int library) throws IOException {
+			String interactions = libraries.get(library);
+			ProgressListener listener = new ProgressListener() {
+				public void recordsParsed(int records, int total) {
+					// Streamed backgrounds estimate their total from the bytes read, 0 if unknown
+					if (total > 0)
+						update(library, (int) (500L * records / total));
+				}
+				
+				public void kinasesScored(int kinases, int total) {
+					update(library, (int) (500 + 500L * kinases / Math.max(total, 1)));
+				}
+			};
+			
+			EnrichmentSession session = sessions.get(interactions);
+			if (session == null) {
+				session = kea.newSession(interactions, listener);
+				sessions.put(interactions, session);
+			}
+			else
+				session.setListener(listener);
+			
+			session.setGenes(genes);
+			EnrichmentResult result = session.getResult();
+			
+			String file = (libraries.size() == 1) ? output : outputFor(output, interactions);
+			try (ResultWriter writer = kea.openWriter(file, false)) {
+				writer.write(result);
+			}
+			written.add(file);
+			
+			ArrayList<String> lines = new ArrayList<String>();
+			if (libraries.size() > 1)
+				lines.add("# " + interactions);
+			lines.addAll(result.getTopRankedList(top));
+			publish(lines.toArray(new String[lines.size()]));
+			update(library, 1000);
+			return file;
+		}
+		
+		private void update(int library, int perMille) {
+			progress.set(library, perMille);
+			int total = 0;
+			for (int i = 0; i < progress.length(); i++)
+				total += progress.get(i);
+			// Thread-safe, updates are coalesced on the EDT
+			setProgress(Math.min(100, total / (10 * progress.length())));
+		}
+		
+		@Override
+		protected void process(List<String> lines) {
+			for (String line : lines)
+				outputTextArea.append(line + "\n");
+		}
+		
+		@Override
+		protected void done() {
+			runButton.setText(RUN);
+			synchronized (written) {
+				if (libraries.size() == 1 && !written.isEmpty())
+					enableOutput(written.get(0));
+				else if (!written.isEmpty())
+					enableOpen(written.get(0));
+			}
+			if (isCancelled()) {
+				progressBar.setValue(0);
+				return;
+			}
+			
+			try {
+				get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				failures.add(String.valueOf(e.getCause().getMessage()));
+			}
+			if (!failures.isEmpty())
+				JOptionPane.showMessageDialog(panel, "Unable to search " + failures, "Search Failed", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+}
@@ -0,0 +1,479 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.mssm.pharm.maayanlab.common.core.FileUtils;
+
+/*
+ * Long-running enrichment service on the JDK's built-in HTTP server, keeping
+ * backgrounds hot in the BackgroundCache. Backgrounds of the BackgroundRegistry
+ * can be queried by name as well and are reloaded while the server runs.
+ * 
+ *   POST /enrich  {"genes": [...], "library": "ARCHS4", "level": "kinase", "sortBy": "p-value", "top": 10, "cutoff": 0.05}
+ *                 returns the @Expose JSON view of the top ranked kinases, up to an adjusted p-value of cutoff
+ *   GET  /metrics throughput, latency, batching, result cache and stage metrics as plain text
+ * 
+ * Everything but genes is optional and defaults to the KEA settings, unknown
+ * libraries, levels and orderings are rejected with 400. Requests are queued
+ * per library and a dispatcher drains each queue in micro-batches, so
+ * concurrent requests against a library share its lookup and rank loading.
+ * Every gene list of a batch is encoded against the index of the library once,
+ * and requests with the same encoded input, level and ordering are only scored
+ * once.
+ */
+public class KEAServer {
+	
+	static Logger log = Logger.getLogger(KEAServer.class.getSimpleName());
+	
+	public final static int DEFAULT_PORT = 8080;
+	
+	// How long a dispatcher waits for more requests after the first one of a batch
+	private final static long BATCH_WINDOW_MICROS = Long.getLong("kea.server.batch.window", 500);
+	private final static int MAXIMUM_BATCH = Integer.getInteger("kea.server.batch.size", 64);
+	private final static long REQUEST_TIMEOUT_SECONDS = 300;
+	
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private final static List<String> LEVELS = Arrays.asList(BackgroundIndex.LEVELS);
+	private final static List<String> SORT_ORDERS = Arrays.asList(KEA.PVALUE, KEA.RANK, KEA.COMBINED_SCORE);
+	
+	private final HttpServer server;
+	private final ExecutorService workers;
+	private final Gson gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+	private final Gson requestGson = new Gson();
+	
+	private final HashMap<String, Dispatcher> dispatchers = new HashMap<String, Dispatcher>();
+	private volatile boolean running = false;
+	
+	// Metrics
+	private final long started = System.nanoTime();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong batchedRequests = new AtomicLong();
+	private final AtomicLong coalescedRequests = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private final AtomicLong maximumLatencyNanos = new AtomicLong();
+	
+	public static void main(String[] args) throws IOException {
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		KEAServer server = new KEAServer(new InetSocketAddress(port));
+		
+		// Optionally warm up backgrounds named on the command line, or register name=file ones
+		for (int i = 1; i < args.length; i++) {
+			int separator = args[i].indexOf('=');
+			if (separator > 0)
+				BackgroundRegistry.register(args[i].substring(0, separator), new File(args[i].substring(separator + 1)));
+			else
+				BackgroundCache.preload(args[i]);
+		}
+		
+		server.start();
+		log.info("Listening on port " + server.getPort());
+	}
+	
+	public KEAServer(InetSocketAddress address) throws IOException {
+		server = HttpServer.create(address, 0);
+		workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		
+		server.createContext("/enrich", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleEnrich(exchange);
+			}
+		});
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, 200, "text/plain", getMetrics());
+			}
+		});
+		// Handler threads mostly wait for their batch, so they are cheap
+		server.setExecutor(Executors.newCachedThreadPool());
+	}
+	
+	public void start() {
+		running = true;
+		server.start();
+	}
+	
+	public void stop() {
+		running = false;
+		server.stop(0);
+		synchronized (dispatchers) {
+			for (Dispatcher dispatcher : dispatchers.values())
+				dispatcher.interrupt();
+			dispatchers.clear();
+		}
+		// Queued scorings never run, their requests would wait for the timeout
+		for (Runnable scoring : workers.shutdownNow())
+			if (scoring instanceof Scoring)
+				((Scoring) scoring).fail(new IllegalStateException("Server is stopped"));
+	}
+	
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+	
+	public String getMetrics() {
+		double uptime = (System.nanoTime() - started) / 1e9;
+		long completed = requests.get();
+		long batchCount = batches.get();
+		
+		StringBuilder metrics = new StringBuilder();
+		metrics.append("uptime_seconds ").append(uptime).append('\n');
+		metrics.append("requests ").append(completed).append('\n');
+		metrics.append("failures ").append(failures.get()).append('\n');
+		metrics.append("requests_per_second ").append(uptime > 0 ? completed / uptime : 0).append('\n');
+		metrics.append("latency_mean_ms ").append(completed > 0 ? totalLatencyNanos.get() / 1e6 / completed : 0).append('\n');
+		metrics.append("latency_max_ms ").append(maximumLatencyNanos.get() / 1e6).append('\n');
+		metrics.append("batches ").append(batchCount).append('\n');
+		metrics.append("batch_size_mean ").append(batchCount > 0 ? (double) batchedRequests.get() / batchCount : 0).append('\n');
+		metrics.append("coalesced_requests ").append(coalescedRequests.get()).append('\n');
+		ResultCache cache = ResultCache.getShared();
+		metrics.append("result_cache_size ").append(cache.size()).append('\n');
+		metrics.append("result_cache_hits ").append(cache.getHits()).append('\n');
+		metrics.append("result_cache_disk_hits ").append(cache.getDiskHits()).append('\n');
+		metrics.append("result_cache_misses ").append(cache.getMisses()).append('\n');
+		metrics.append("result_cache_evictions ").append(cache.getEvictions()).append('\n');
+		metrics.append("result_cache_disk_evictions ").append(cache.getDiskEvictions()).append('\n');
+		metrics.append(EnrichmentMetrics.get().getDump());
+		return metrics.toString();
+	}
+	
+	// JSON request body
+	private static class EnrichmentRequest {
+		List<String> genes;
+		String library;
+		String level;
+		String sortBy;
+		Integer top;
+		Double cutoff;
+	}
+	
+	// A request waiting in a dispatcher queue
+	private static class Pending {
+		final List<String> genes;
+		final String level;
+		final String sortBy;
+		final Completion completion = new Completion();
+		
+		Pending(List<String> genes, String level, String sortBy) {
+			this.genes = genes;
+			this.level = level;
+			this.sortBy = sortBy;
+		}
+	}
+	
+	// Requests that are bound to produce the same result
+	private static class Query {
+		final String level;
+		final String sortBy;
+		final long[] input;
+		
+		Query(String level, String sortBy, long[] input) {
+			this.level = level;
+			this.sortBy = sortBy;
+			this.input = input;
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * (31 * level.hashCode() + sortBy.hashCode()) + Arrays.hashCode(input);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Query))
+				return false;
+			Query other = (Query) obj;
+			return level.equals(other.level) && sortBy.equals(other.sortBy) && Arrays.equals(input, other.input);
+		}
+	}
+	
+	// Future completed by the dispatcher
+	private static class Completion extends FutureTask<EnrichmentResult> {
+		
+		private final static Runnable NOTHING = new Runnable() {
+			public void run() {
+			}
+		};
+		
+		Completion() {
+			super(NOTHING, null);
+		}
+		
+		void complete(EnrichmentResult result) {
+			set(result);
+		}
+		
+		void fail(Throwable cause) {
+			setException(cause);
+		}
+	}
+	
+	private void handleEnrich(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		try {
+			if (!exchange.getRequestMethod().equals("POST")) {
+				respond(exchange, 405, "text/plain", "POST a JSON gene list\n");
+				return;
+			}
+			
+			EnrichmentRequest request;
+			try {
+				request = requestGson.fromJson(read(exchange.getRequestBody()), EnrichmentRequest.class);
+			} catch (JsonParseException e) {
+				fail(exchange, 400, "Invalid JSON: " + e.getMessage());
+				return;
+			}
+			if (request == null || request.genes == null) {
+				fail(exchange, 400, "No genes given");
+				return;
+			}
+			
+			ArrayList<String> genes = new ArrayList<String>(request.genes);
+			try {
+				FileUtils.validateList(genes);
+			} catch (ParseException e) {
+				if (e.getErrorOffset() == -1)
+					fail(exchange, 400, "Input list is empty.");
+				else
+					fail(exchange, 400, e.getMessage() + " at line " + (e.getErrorOffset() + 1) + " is not a valid Entrez Gene Symbol.");
+				return;
+			}
+			
+			String library = (request.library != null) ? request.library : KEA.BOTH_TYPES;
+			if (!Arrays.asList(KEA.BACKGROUNDS).contains(library) && !BackgroundRegistry.isRegistered(library)) {
+				fail(exchange, 400, "Unknown library " + library);
+				return;
+			}
+			String level = (request.level != null) ? request.level : KEA.KINASE_LEVEL;
+			if (!LEVELS.contains(level)) {
+				fail(exchange, 400, "Unknown level " + level);
+				return;
+			}
+			String sortBy = (request.sortBy != null) ? request.sortBy : KEA.COMBINED_SCORE;
+			if (!SORT_ORDERS.contains(sortBy)) {
+				fail(exchange, 400, "Unknown ordering " + sortBy);
+				return;
+			}
+			
+			EnrichmentResult result;
+			try {
+				result = submit(library, genes, level, sortBy).get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch (ExecutionException e) {
+				log.warning("Enrichment failed: " + e.getCause());
+				fail(exchange, 500, "Enrichment failed: " + e.getCause().getMessage());
+				return;
+			} catch (TimeoutException e) {
+				fail(exchange, 503, "Enrichment timed out");
+				return;
+			} catch (IllegalStateException e) {
+				// Stopped since the request came in
+				fail(exchange, 503, e.getMessage());
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				fail(exchange, 503, "Interrupted");
+				return;
+			}
+			
+			List<Kinase> kinases;
+			if (request.cutoff != null)
+				kinases = result.getTopRanked((request.top != null) ? request.top : result.size(), request.cutoff);
+			else
+				kinases = (request.top != null) ? result.getTopRanked(request.top) : result.getRankedKinases();
+			respond(exchange, 200, "application/json", gson.toJson(kinases));
+			
+			long latency = System.nanoTime() - start;
+			requests.incrementAndGet();
+			totalLatencyNanos.addAndGet(latency);
+			long maximum;
+			while (latency > (maximum = maximumLatencyNanos.get()) && !maximumLatencyNanos.compareAndSet(maximum, latency));
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	private Future<EnrichmentResult> submit(String library, List<String> genes, String level, String sortBy) {
+		Pending pending = new Pending(genes, level, sortBy);
+		
+		synchronized (dispatchers) {
+			if (!running)
+				throw new IllegalStateException("Server is stopped");
+			Dispatcher dispatcher = dispatchers.get(library);
+			if (dispatcher == null) {
+				dispatcher = new Dispatcher(library);
+				dispatchers.put(library, dispatcher);
+				dispatcher.start();
+			}
+			dispatcher.queue.add(pending);
+		}
+		return pending.completion;
+	}
+	
+	/*
+	 * Drains the queue of one library: waits for a first request, collects
+	 * whatever else arrives within the batch window and scores the batch on
+	 * the worker pool.
+	 */
+	private class Dispatcher extends Thread {
+		
+		final String library;
+		final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+		
+		Dispatcher(String library) {
+			super("KEA dispatcher " + library);
+			this.library = library;
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			ArrayList<Pending> batch = new ArrayList<Pending>();
+			try {
+				while (running) {
+					batch.clear();
+					batch.add(queue.take());
+					long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(BATCH_WINDOW_MICROS);
+					while (batch.size() < MAXIMUM_BATCH) {
+						Pending next = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+						if (next == null)
+							break;
+						batch.add(next);
+					}
+					try {
+						process(batch);
+					} catch (Throwable e) {
+						// The dispatcher stays registered, so it has to outlive a bad batch
+						log.severe("Batch of " + library + " failed: " + e);
+						for (Pending pending : batch)
+							if (!pending.completion.isDone())
+								pending.completion.fail(e);
+					}
+				}
+			} catch (InterruptedException e) {
+				// Server stopped
+			}
+			for (Pending pending : queue)
+				pending.completion.fail(new IllegalStateException("Server is stopped"));
+		}
+		
+		private void process(List<Pending> batch) {
+			batches.incrementAndGet();
+			batchedRequests.addAndGet(batch.size());
+			
+			final BackgroundIndex index;
+			try {
+				index = BackgroundCache.getIndex(library);
+			} catch (RuntimeException e) {
+				for (Pending pending : batch)
+					pending.completion.fail(e);
+				return;
+			}
+			
+			// Each gene list is encoded once whatever it is scored at, requests with the same query share one computation
+			HashMap<List<String>, long[]> inputs = new HashMap<List<String>, long[]>();
+			HashMap<Query, List<Pending>> groups = new HashMap<Query, List<Pending>>();
+			for (Pending pending : batch) {
+				long[] input = inputs.get(pending.genes);
+				if (input == null) {
+					input = EnrichmentEngine.encode(index, pending.genes);
+					inputs.put(pending.genes, input);
+				}
+				Query query = new Query(pending.level, pending.sortBy, input);
+				List<Pending> group = groups.get(query);
+				if (group == null) {
+					group = new ArrayList<Pending>();
+					groups.put(query, group);
+				}
+				else
+					coalescedRequests.incrementAndGet();
+				group.add(pending);
+			}
+			
+			for (Map.Entry<Query, List<Pending>> entry : groups.entrySet())
+				workers.execute(new Scoring(index, entry.getKey(), entry.getValue()));
+		}
+	}
+	
+	// Scores one query of a batch for all of its requests
+	private static class Scoring implements Runnable {
+		
+		final BackgroundIndex index;
+		final Query query;
+		final List<Pending> group;
+		
+		Scoring(BackgroundIndex index, Query query, List<Pending> group) {
+			this.index = index;
+			this.query = query;
+			this.group = group;
+		}
+		
+		public void run() {
+			try {
+				EnrichmentResult result = new EnrichmentEngine(query.sortBy, ResultCache.getShared()).score(index.getLibrary(query.level), query.input);
+				for (Pending pending : group)
+					pending.completion.complete(result);
+			} catch (RuntimeException e) {
+				fail(e);
+			}
+		}
+		
+		void fail(Throwable cause) {
+			for (Pending pending : group)
+				pending.completion.fail(cause);
+		}
+	}
+	
+	private void fail(HttpExchange exchange, int status, String message) throws IOException {
+		failures.incrementAndGet();
+		respond(exchange, status, "text/plain", message + "\n");
+	}
+	
+	private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+	
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+			bytes.write(buffer, 0, read);
+		return new String(bytes.toByteArray(), UTF_8);
+	}
+}
@@ -4,6 +4,8 @@ import java.util.Set;
 import java.util.HashSet;
 
 import com.google.gson.annotations.Expose;
+
+// EnrichmentResult hands out a new instance on every call, so changing one never reaches a cached result
 public class Kinase implements Comparable<Object> {
 
 	@Expose
@@ -17,6 +19,11 @@ public class Kinase implements Comparable<Object> {
 	private double fractionOfSubstratesInBackground;
 	@Expose
 	private double pvalue;
+	// Benjamini-Hochberg
+	@Expose
+	private double adjustedPValue;
+	@Expose
+	private double bonferroniPValue;
 	@Expose
 	private double zscore;
 	@Expose
@@ -33,6 +40,16 @@ public class Kinase implements Comparable<Object> {
 		substrates.add(substrate);
 		
 	}
+	
+	// Shares the (immutable) substrate set of a cached background library
+	public Kinase(
+			String name,
+			Set<String> substrates) {
+		
+		this.name = name;
+		this.substrates = substrates;
+		
+	}
 
 	public String getName() {
 		return this.name;
@@ -63,10 +80,18 @@ public class Kinase implements Comparable<Object> {
 		this.fractionOfSubstratesInInput = fractionOfSubstratesInInput;
 	}
 	
+	public double getFractionOfSubstratesInInput() {
+		return this.fractionOfSubstratesInInput;
+	}
+	
 	public void setFractionOfSubstratesInBackground(double fractionOfSubstratesInBackground) {
 		this.fractionOfSubstratesInBackground = fractionOfSubstratesInBackground;
 	}
 	
+	public double getFractionOfSubstratesInBackground() {
+		return this.fractionOfSubstratesInBackground;
+	}
+	
 	public double getPValue() {
 		return this.pvalue;
 	}
@@ -75,6 +100,20 @@ public class Kinase implements Comparable<Object> {
 		this.pvalue = pvalue;
 	}
 	
+	public double getAdjustedPValue() {
+		return this.adjustedPValue;
+	}
+	
+	public double getBonferroniPValue() {
+		return this.bonferroniPValue;
+	}
+	
+	// Adjusted over all kinases of the library, see EnrichmentResult
+	void setAdjustedPValues(double adjustedPValue, double bonferroniPValue) {
+		this.adjustedPValue = adjustedPValue;
+		this.bonferroniPValue = bonferroniPValue;
+	}
+	
 	public double getZScore() {
 		return this.zscore;
 	}
@@ -94,28 +133,13 @@ public class Kinase implements Comparable<Object> {
 	8. rank computed using z-test
 	9. combined score computed from p-value and rank
 	10. list of substrates separated by a semi-colon
+	11. Benjamini-Hochberg adjusted p-value
+	12. Bonferroni adjusted p-value
 	 */	
 	@Override
 	public String toString() {
 		StringBuilder outputString = new StringBuilder();
-		outputString.append(name).append(",");
-		outputString.append(enrichedSubstrates.size()).append(",");
-		outputString.append(substrates.size()).append(",");
-		outputString.append(fractionOfSubstratesInInput).append(",");
-		outputString.append(fractionOfSubstratesInBackground).append(",");
-		outputString.append((fractionOfSubstratesInInput - fractionOfSubstratesInBackground)).append(",");
-		outputString.append(pvalue).append(",").append(zscore).append(",").append(combinedScore).append(",");
-		
-		boolean firstSubstrate = true;
-		for (String enrichedSubstrate : enrichedSubstrates) {
-			if (firstSubstrate) {
-				outputString.append(enrichedSubstrate);
-				firstSubstrate = false;
-			}
-			else
-				outputString.append(";").append(enrichedSubstrate);
-		}
-		
+		ResultWriter.appendRow(outputString, this, ',');
 		return outputString.toString();
 	}
 
@@ -155,10 +179,20 @@ public class Kinase implements Comparable<Object> {
 	}
 
 	public void computeScore(int currentRank) {
+		zscore = zScore(currentRank, mean, standardDeviation);
+		combinedScore = Math.log(pvalue)*zscore;
+	}
+	
+	// Scores computed from the primitive columns of an EnrichmentResult
+	void setScores(double zscore, double combinedScore) {
+		this.zscore = zscore;
+		this.combinedScore = combinedScore;
+	}
+	
+	static double zScore(int currentRank, double mean, double standardDeviation) {
 		if (mean == 0 && standardDeviation == 0)
-			zscore = 0;
+			return 0;
 		else
-			zscore = (currentRank - mean)/standardDeviation;
-		combinedScore = Math.log(pvalue)*zscore;
+			return (currentRank - mean)/standardDeviation;
 	}
 }
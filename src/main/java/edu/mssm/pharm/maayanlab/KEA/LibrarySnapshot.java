@@ -0,0 +1,636 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/*
+ * Compact binary form of a background database holding all three levels of
+ * kinase resolution, so that loading a library skips text parsing entirely.
+ * 
+ * Layout (little-endian, sections aligned to 8 bytes):
+ *   magic, version, source fingerprint (long), content fingerprint (long)
+ *   substrate count, name count
+ *   substrate names and group/family/kinase names: count + 1 byte offsets, then the UTF-8 bytes
+ *   substrate hash table: size, then substrate id + 1 by name hash (0 for empty slots)
+ *   per level (group, family, kinase):
+ *     kinase count, edge count, kinase name ids
+ *     CSR substrate ids: kinase count + 1 offsets, then edge count ascending substrate ids
+ *     CSR postings: substrate count + 1 offsets, then edge count ascending kinase ids
+ *     kinase bitsets: a word for every 64 substrates of every kinase
+ * 
+ * Kinases are the distinct names of a level in order of first appearance in
+ * the background records, like the substrates, so the BackgroundIndex of a
+ * snapshot is identical to one parsed from the records.
+ * 
+ * Snapshots are memory-mapped and never copied: the libraries read the
+ * bitsets, ids and postings through views of the mapped file and decode names
+ * on first use, so opening a snapshot costs the header and JVMs serving the
+ * same snapshot share its pages. Compiled snapshots live in a direct buffer of
+ * the same layout. The source fingerprint covers the names, sizes and
+ * modification times of the resources a snapshot was compiled from, so a
+ * snapshot of changed resources is rejected like one of another version.
+ */
+public final class LibrarySnapshot {
+	
+	static Logger log = Logger.getLogger(LibrarySnapshot.class.getSimpleName());
+	
+	// "KEAS"
+	private final static int MAGIC = 0x4B454153;
+	private final static int VERSION = 3;
+	private final static int HEADER = 32;
+	
+	public final static String EXTENSION = ".kea";
+	
+	private final static int PROGRESS_INTERVAL = 4096;
+	
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+	
+	// Whole snapshot, views below are slices of it
+	private final ByteBuffer buffer;
+	
+	// 0 for snapshots not compiled from resources
+	private final long source;
+	private final long fingerprint;
+	
+	private final IntBuffer substrateOffsets;
+	private final int substrateBytes;
+	private final IntBuffer nameOffsets;
+	private final int nameBytes;
+	private final IntBuffer substrateTable;
+	
+	// Indexed by level column (0: group, 1: family, 2: kinase)
+	private final Level[] levels = new Level[3];
+	
+	// Throws IllegalArgumentException if the sections overrun the buffer
+	private LibrarySnapshot(ByteBuffer buffer) {
+		this.buffer = buffer;
+		source = buffer.getLong(8);
+		fingerprint = buffer.getLong(16);
+		int substrateCount = buffer.getInt(24);
+		int nameCount = buffer.getInt(28);
+		
+		ByteBuffer cursor = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		cursor.position(HEADER);
+		substrateOffsets = ints(cursor, substrateCount + 1);
+		substrateBytes = cursor.position();
+		skip(cursor, substrateOffsets.get(substrateCount));
+		align(cursor);
+		nameOffsets = ints(cursor, nameCount + 1);
+		nameBytes = cursor.position();
+		skip(cursor, nameOffsets.get(nameCount));
+		align(cursor);
+		substrateTable = ints(cursor, cursor.getInt());
+		align(cursor);
+		for (int column = 0; column < levels.length; column++)
+			levels[column] = new Level(cursor, substrateCount);
+		if (cursor.hasRemaining())
+			throw new IllegalArgumentException("Trailing bytes");
+	}
+	
+	/*
+	 * Views of one level of kinase resolution, read with absolute gets only so
+	 * they can be shared between threads.
+	 */
+	final class Level {
+		
+		final int kinases;
+		final int words;
+		final IntBuffer kinaseNames;
+		final IntBuffer substrateOffsets;
+		final IntBuffer substrates;
+		final IntBuffer postingOffsets;
+		final IntBuffer postings;
+		final LongBuffer bits;
+		
+		private Level(ByteBuffer cursor, int substrateCount) {
+			kinases = cursor.getInt();
+			int edges = cursor.getInt();
+			words = BackgroundLibrary.wordsFor(substrateCount);
+			kinaseNames = ints(cursor, kinases);
+			substrateOffsets = ints(cursor, kinases + 1);
+			substrates = ints(cursor, edges);
+			postingOffsets = ints(cursor, substrateCount + 1);
+			postings = ints(cursor, edges);
+			align(cursor);
+			bits = slice(cursor, 8 * kinases * words).asLongBuffer();
+		}
+		
+		String kinaseName(int kinase) {
+			return name(kinaseNames.get(kinase));
+		}
+		
+		// Ascending substrate ids of a kinase
+		IntBuffer substrates(int kinase) {
+			return range(substrates, substrateOffsets.get(kinase), substrateOffsets.get(kinase + 1));
+		}
+	
+	}
+	
+	// Compiles group,family,kinase,substrate records
+	public static LibrarySnapshot compile(Collection<String> background) {
+		return compile(background, null);
+	}
+	
+	// Reports every PROGRESS_INTERVAL records to listener if not null, cannot be cancelled
+	public static LibrarySnapshot compile(Collection<String> background, ProgressListener listener) {
+		Compiler compiler = new Compiler();
+		for (String record : background) {
+			if (!compiler.add(record))
+				throw new IllegalArgumentException(record + " is not a group,family,kinase,substrate record.");
+			if (listener != null && compiler.records % PROGRESS_INTERVAL == 0)
+				listener.recordsParsed(compiler.records, background.size());
+		}
+		if (listener != null)
+			listener.recordsParsed(compiler.records, background.size());
+		return compiler.toSnapshot(0);
+	}
+	
+	/*
+	 * Streams the records of bundled resources (see KEA.openResource) one line
+	 * at a time, so the raw text is never held. Blank lines are skipped. The
+	 * number of records is not known before the end, so the total reported to
+	 * listener is estimated from the bytes read so far and the size of the
+	 * resources, 0 if their size is unknown.
+	 */
+	public static LibrarySnapshot compile(String[] resources, ProgressListener listener) throws IOException {
+		long length = 0;
+		for (String resource : resources) {
+			long resourceLength = KEA.resourceLength(resource);
+			length = (length < 0 || resourceLength < 0) ? -1 : length + resourceLength;
+		}
+		
+		long source = sourceFingerprint(resources);
+		Compiler compiler = new Compiler();
+		long read = 0;
+		for (String resource : resources) {
+			CountingInputStream in = new CountingInputStream(KEA.openResource(resource));
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+			try {
+				String line;
+				for (int number = 1; (line = reader.readLine()) != null; number++) {
+					if (line.trim().isEmpty())
+						continue;
+					if (!compiler.add(line))
+						throw new IOException("Line " + number + " of " + resource + " is not a group,family,kinase,substrate record.");
+					if (listener != null && compiler.records % PROGRESS_INTERVAL == 0)
+						listener.recordsParsed(compiler.records, estimate(compiler.records, read + in.count, length));
+				}
+			} finally {
+				reader.close();
+			}
+			read += in.count;
+		}
+		if (listener != null)
+			listener.recordsParsed(compiler.records, compiler.records);
+		return compiler.toSnapshot(source);
+	}
+	
+	// Fingerprint of the names, sizes and modification times of resources
+	public static long sourceFingerprint(String[] resources) {
+		long hash = 0xCBF29CE484222325L;
+		for (String resource : resources) {
+			hash = BackgroundIndex.mix(hash, resource.hashCode());
+			hash = BackgroundIndex.mix(hash, KEA.resourceLength(resource));
+			hash = BackgroundIndex.mix(hash, KEA.resourceLastModified(resource));
+		}
+		return hash;
+	}
+	
+	// Records expected in length bytes at the rate seen so far, never fewer than there are
+	private static int estimate(int records, long read, long length) {
+		if (length <= 0 || read <= 0)
+			return 0;
+		return (int) Math.max(records + 1, Math.min(Integer.MAX_VALUE, records * length / read));
+	}
+	
+	// Bytes read from the resource, ahead of the parsed records by at most the reader buffers
+	private static final class CountingInputStream extends FilterInputStream {
+		
+		private long count;
+		
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				count++;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+	
+	/*
+	 * Builds a snapshot from records added one at a time. Names and substrates
+	 * are interned into the dictionaries as they come, so only one copy of each
+	 * is kept however many records repeat it.
+	 */
+	static final class Compiler {
+		
+		private final LinkedHashMap<String, Integer> substrateIds = new LinkedHashMap<String, Integer>();
+		private final LinkedHashMap<String, Integer> nameIds = new LinkedHashMap<String, Integer>();
+		private final LinkedHashMap<String, int[]> leaves = new LinkedHashMap<String, int[]>();
+		private final HashMap<String, Set<Integer>> leafSubstrates = new HashMap<String, Set<Integer>>();
+		private int records = 0;
+		
+		/*
+		 * Adds a group,family,kinase,substrate record, fields past the substrate
+		 * are ignored. False if the record has fewer fields. Splits on the commas
+		 * without a regular expression or an array of fields.
+		 */
+		boolean add(String record) {
+			int group = record.indexOf(',');
+			int family = (group < 0) ? -1 : record.indexOf(',', group + 1);
+			int kinase = (family < 0) ? -1 : record.indexOf(',', family + 1);
+			if (kinase < 0)
+				return false;
+			int substrate = record.indexOf(',', kinase + 1);
+			if (substrate < 0)
+				substrate = record.length();
+			
+			// The leaf key is the record up to the substrate
+			String leaf = record.substring(0, kinase);
+			Set<Integer> substrates = leafSubstrates.get(leaf);
+			if (substrates == null) {
+				leaves.put(leaf, new int[] { id(nameIds, record.substring(0, group)), id(nameIds, record.substring(group + 1, family)), id(nameIds, record.substring(family + 1, kinase)) });
+				substrates = new HashSet<Integer>();
+				leafSubstrates.put(leaf, substrates);
+			}
+			substrates.add(id(substrateIds, record.substring(kinase + 1, substrate)));
+			records++;
+			return true;
+		}
+		
+		boolean isEmpty() {
+			return records == 0;
+		}
+		
+		LibrarySnapshot toSnapshot(long source) {
+			String[] substrates = keys(substrateIds);
+			Output out = new Output();
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+			out.putLong(source);
+			// Content fingerprint, filled in by finish()
+			out.putLong(0);
+			out.putInt(substrates.length);
+			out.putInt(nameIds.size());
+			putStrings(out, substrates);
+			putStrings(out, keys(nameIds));
+			putTable(out, substrates);
+			for (int column = 0; column < 3; column++)
+				putLevel(out, column, substrates.length);
+			return new LibrarySnapshot(out.finish());
+		}
+		
+		// Kinases of a level are the unions of the substrates of their leaves
+		private void putLevel(Output out, int column, int universe) {
+			int words = BackgroundLibrary.wordsFor(universe);
+			LinkedHashMap<Integer, long[]> kinases = new LinkedHashMap<Integer, long[]>();
+			for (Map.Entry<String, int[]> leaf : leaves.entrySet()) {
+				long[] bits = kinases.get(leaf.getValue()[column]);
+				if (bits == null) {
+					bits = new long[words];
+					kinases.put(leaf.getValue()[column], bits);
+				}
+				for (Integer substrate : leafSubstrates.get(leaf.getKey()))
+					BackgroundLibrary.set(bits, substrate);
+			}
+			
+			int edges = 0;
+			int[] postingCounts = new int[universe + 1];
+			for (long[] bits : kinases.values()) {
+				edges += BackgroundLibrary.cardinality(bits);
+				for (int i = 0; i < words; i++)
+					for (long word = bits[i]; word != 0; word &= word - 1)
+						postingCounts[(i << 6) + Long.numberOfTrailingZeros(word)]++;
+			}
+			
+			out.putInt(kinases.size());
+			out.putInt(edges);
+			for (Integer name : kinases.keySet())
+				out.putInt(name);
+			int offset = 0;
+			out.putInt(offset);
+			for (long[] bits : kinases.values())
+				out.putInt(offset += BackgroundLibrary.cardinality(bits));
+			for (long[] bits : kinases.values())
+				for (int substrate : BackgroundLibrary.toIds(bits, BackgroundLibrary.cardinality(bits)))
+					out.putInt(substrate);
+			
+			// Postings are filled kinase by kinase, so each lists its kinases in ascending order
+			int[] postingOffsets = new int[universe + 1];
+			for (int substrate = 0; substrate < universe; substrate++)
+				postingOffsets[substrate + 1] = postingOffsets[substrate] + postingCounts[substrate];
+			int[] postings = new int[edges];
+			int[] next = Arrays.copyOf(postingOffsets, universe);
+			int kinase = 0;
+			for (long[] bits : kinases.values()) {
+				for (int i = 0; i < words; i++)
+					for (long word = bits[i]; word != 0; word &= word - 1)
+						postings[next[(i << 6) + Long.numberOfTrailingZeros(word)]++] = kinase;
+				kinase++;
+			}
+			for (int postingOffset : postingOffsets)
+				out.putInt(postingOffset);
+			for (int posting : postings)
+				out.putInt(posting);
+			
+			out.align();
+			for (long[] bits : kinases.values())
+				for (long word : bits)
+					out.putLong(word);
+		}
+	}
+	
+	// Builds the index of all resolution levels
+	public BackgroundIndex toIndex(String interactions) {
+		long start = System.nanoTime();
+		BackgroundIndex index = new BackgroundIndex(interactions, this);
+		EnrichmentMetrics.record(EnrichmentMetrics.Stage.INDEX_BUILD, start);
+		return index;
+	}
+	
+	public int getUniverseSize() {
+		return substrateOffsets.limit() - 1;
+	}
+	
+	public long getSource() {
+		return source;
+	}
+	
+	// 64-bit FNV-1a over the content, changes whenever the background database does
+	public long getFingerprint() {
+		return fingerprint;
+	}
+	
+	String substrateName(int substrate) {
+		return string(substrateOffsets, substrateBytes, substrate);
+	}
+	
+	String name(int name) {
+		return string(nameOffsets, nameBytes, name);
+	}
+	
+	// Open addressing by hash(), substrate id + 1 per slot and 0 for empty slots
+	IntBuffer getSubstrateTable() {
+		return substrateTable;
+	}
+	
+	Level getLevel(int column) {
+		return levels[column];
+	}
+	
+	/*
+	 * Slot of a name in the substrate table, probed linearly from there. Gene
+	 * names often differ in their last characters only, so their hash codes are
+	 * scrambled (Fibonacci hashing) to keep them from filling runs of slots.
+	 */
+	static int hash(String name, int tableSize) {
+		return (name.hashCode() * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(tableSize));
+	}
+	
+	// Written to a temporary file first and moved into place so readers never see a partial snapshot
+	public void write(File file) throws IOException {
+		File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			FileChannel out = new FileOutputStream(temp).getChannel();
+			try {
+				ByteBuffer bytes = buffer.duplicate();
+				bytes.clear();
+				while (bytes.hasRemaining())
+					out.write(bytes);
+			} finally {
+				out.close();
+			}
+			
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Unable to move snapshot to " + file);
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+	
+	public static LibrarySnapshot read(File file) throws IOException {
+		return read(file, null);
+	}
+	
+	// Rejects a snapshot compiled from other resources than those of the source fingerprint
+	public static LibrarySnapshot read(File file, long source) throws IOException {
+		return read(file, Long.valueOf(source));
+	}
+	
+	private static LibrarySnapshot read(File file, Long expectedSource) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			// The mapping stays valid once the file is closed
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			
+			if (buffer.getInt(0) != MAGIC)
+				throw new IOException(file + " is not a KEA snapshot");
+			int version = buffer.getInt(4);
+			if (version != VERSION)
+				throw new IOException(file + " has snapshot version " + version + ", expected " + VERSION);
+			if (expectedSource != null && buffer.getLong(8) != expectedSource)
+				throw new IOException(file + " was compiled from other resources");
+			
+			return new LibrarySnapshot(buffer);
+		} catch (RuntimeException e) {
+			// Sections overrunning truncated or corrupt files
+			throw new IOException(file + " is corrupt", e);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	public static File fileFor(File directory, String interactions) {
+		return new File(directory, interactions.replaceAll("[^A-Za-z0-9._-]", "_") + EXTENSION);
+	}
+	
+	/*
+	 * Compiles snapshots of all built-in backgrounds into a directory, e.g. at
+	 * build time: java edu.mssm.pharm.maayanlab.KEA.LibrarySnapshot snapshots/
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			log.severe("Usage: java edu.mssm.pharm.maayanlab.KEA.LibrarySnapshot directory");
+			return;
+		}
+		
+		File directory = new File(args[0]);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create " + directory);
+		
+		for (String interactions : KEA.BACKGROUNDS) {
+			File file = fileFor(directory, interactions);
+			compile(KEA.backgroundResources(interactions), null).write(file);
+			log.info("Wrote " + file);
+		}
+	}
+	
+	private static int id(LinkedHashMap<String, Integer> ids, String key) {
+		Integer id = ids.get(key);
+		if (id == null) {
+			id = ids.size();
+			ids.put(key, id);
+		}
+		return id;
+	}
+	
+	private static String[] keys(LinkedHashMap<String, Integer> ids) {
+		return ids.keySet().toArray(new String[ids.size()]);
+	}
+	
+	// Name count + 1 byte offsets, then the bytes of all names
+	private static void putStrings(Output out, String[] strings) {
+		byte[][] bytes = new byte[strings.length][];
+		int offset = 0;
+		out.putInt(offset);
+		for (int i = 0; i < strings.length; i++) {
+			bytes[i] = strings[i].getBytes(UTF_8);
+			out.putInt(offset += bytes[i].length);
+		}
+		for (byte[] string : bytes)
+			out.put(string);
+		out.align();
+	}
+	
+	// Table of at least twice as many slots as substrates, so probes stay short
+	private static void putTable(Output out, String[] substrates) {
+		int[] table = new int[Integer.highestOneBit(Math.max(1, 2 * substrates.length - 1)) << 1];
+		for (int substrate = 0; substrate < substrates.length; substrate++) {
+			int slot = hash(substrates[substrate], table.length);
+			while (table[slot] != 0)
+				slot = (slot + 1) & (table.length - 1);
+			table[slot] = substrate + 1;
+		}
+		out.putInt(table.length);
+		for (int id : table)
+			out.putInt(id);
+		out.align();
+	}
+	
+	private String string(IntBuffer offsets, int bytes, int i) {
+		int start = offsets.get(i);
+		byte[] string = new byte[offsets.get(i + 1) - start];
+		ByteBuffer view = buffer.duplicate();
+		view.position(bytes + start);
+		view.get(string);
+		return new String(string, UTF_8);
+	}
+	
+	private static IntBuffer ints(ByteBuffer cursor, int count) {
+		return slice(cursor, 4 * count).asIntBuffer();
+	}
+	
+	// Next bytes of cursor as a buffer of their own
+	private static ByteBuffer slice(ByteBuffer cursor, int bytes) {
+		ByteBuffer slice = cursor.slice().order(ByteOrder.LITTLE_ENDIAN);
+		slice.limit(bytes);
+		skip(cursor, bytes);
+		return slice;
+	}
+	
+	private static void skip(ByteBuffer cursor, int bytes) {
+		cursor.position(cursor.position() + bytes);
+	}
+	
+	private static void align(ByteBuffer cursor) {
+		cursor.position((cursor.position() + 7) & ~7);
+	}
+	
+	// Positions from..to of a view as a view of their own
+	private static IntBuffer range(IntBuffer view, int from, int to) {
+		IntBuffer range = view.duplicate();
+		range.limit(to).position(from);
+		return range.slice();
+	}
+	
+	// Growing little-endian buffer of a snapshot being compiled
+	private static final class Output {
+		
+		private ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		
+		void putInt(int value) {
+			ensureRemaining(4).putInt(value);
+		}
+		
+		void putLong(long value) {
+			ensureRemaining(8).putLong(value);
+		}
+		
+		void put(byte[] bytes) {
+			ensureRemaining(bytes.length).put(bytes);
+		}
+		
+		void align() {
+			while ((buffer.position() & 7) != 0)
+				ensureRemaining(1).put((byte) 0);
+		}
+		
+		// Fills in the content fingerprint and moves the snapshot out of the heap
+		ByteBuffer finish() {
+			long hash = 0xCBF29CE484222325L;
+			for (int position = HEADER; position < buffer.position(); position += 8)
+				hash = BackgroundIndex.mix(hash, buffer.getLong(position));
+			buffer.putLong(16, hash);
+			
+			buffer.flip();
+			ByteBuffer direct = ByteBuffer.allocateDirect(buffer.limit()).order(ByteOrder.LITTLE_ENDIAN);
+			direct.put(buffer).clear();
+			return direct;
+		}
+		
+		private ByteBuffer ensureRemaining(int bytes) {
+			if (buffer.remaining() < bytes) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+				buffer.flip();
+				grown.put(buffer);
+				buffer = grown;
+			}
+			return buffer;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+/*
+ * Shared replacement for pal.statistics.FisherExact. Instead of building a
+ * log-factorial table of the whole background universe for every kinase, one
+ * table is grown on demand and reused across kinases, queries and threads.
+ * 
+ * The table is filled with the same recurrence and the p-values are summed in
+ * the same order as FisherExact, so results are identical to the last bit.
+ * Readers never lock: they see either the old or the grown table, and both
+ * hold the same values for every index they have in common.
+ */
+public final class LogFactorialTable {
+	
+	private volatile double[] f = { 0.0 };
+	
+	public LogFactorialTable() {
+	}
+	
+	public LogFactorialTable(int maxSize) {
+		ensureCapacity(maxSize);
+	}
+	
+	// Makes sure log(n!) is tabulated up to maxSize
+	public void ensureCapacity(int maxSize) {
+		if (maxSize < f.length)
+			return;
+		
+		synchronized (this) {
+			double[] table = f;
+			if (maxSize < table.length)
+				return;
+			
+			// Grow geometrically so that slowly increasing sizes do not copy every time
+			int size = Math.max(maxSize + 1, Math.min(Integer.MAX_VALUE - 8, table.length * 2));
+			double[] grown = new double[size];
+			System.arraycopy(table, 0, grown, 0, table.length);
+			for (int i = table.length; i < size; i++)
+				grown[i] = grown[i - 1] + Math.log(i);
+			f = grown;
+		}
+	}
+	
+	public int capacity() {
+		return f.length - 1;
+	}
+	
+	public double logFactorial(int n) {
+		ensureCapacity(n);
+		return f[n];
+	}
+	
+	// Probability of the 2x2 table a, b, c, d
+	public double getP(int a, int b, int c, int d) {
+		int n = a + b + c + d;
+		ensureCapacity(n);
+		return getP(f, a, b, c, d, n);
+	}
+	
+	// Probability of the table and all more extreme tables with a larger a
+	public double getRightTailedP(int a, int b, int c, int d) {
+		int n = a + b + c + d;
+		ensureCapacity(n);
+		double[] f = this.f;
+		
+		double p = 0;
+		p += getP(f, a, b, c, d, n);
+		int min = (c < b) ? c : b;
+		for (int i = 0; i < min; i++)
+			p += getP(f, ++a, --b, --c, ++d, n);
+		
+		return p;
+	}
+	
+	/*
+	 * Same as getRightTailedP(a, b, c, d) for tables with a p-value up to the
+	 * cutoff, otherwise some value above the cutoff. The tail is summed in the
+	 * same order and given up as soon as the partial sum exceeds the cutoff,
+	 * and overlaps up to the expected one are given up without summing at all:
+	 * the median of the hypergeometric distribution is at least the floor of its
+	 * mean, so their p-value is at least 1/2.
+	 */
+	public double getRightTailedP(int a, int b, int c, int d, double cutoff) {
+		int n = a + b + c + d;
+		if (cutoff < 0.5 && a <= (long) (a + b) * (a + c) / n)
+			return 1;
+		ensureCapacity(n);
+		double[] f = this.f;
+		
+		double p = 0;
+		p += getP(f, a, b, c, d, n);
+		int min = (c < b) ? c : b;
+		for (int i = 0; i < min && p <= cutoff; i++)
+			p += getP(f, ++a, --b, --c, ++d, n);
+		
+		return p;
+	}
+	
+	private static double getP(double[] f, int a, int b, int c, int d, int n) {
+		double p = (f[a + b] + f[c + d] + f[a + c] + f[b + d]) - (f[a] + f[b] + f[c] + f[d] + f[n]);
+		return Math.exp(p);
+	}
+}
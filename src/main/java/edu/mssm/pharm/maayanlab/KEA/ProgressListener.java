@@ -0,0 +1,15 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+/*
+ * Progress of parsing a background and of scoring a gene list, reported on the
+ * thread doing the work. Work that reports progress also stops with a
+ * CancellationException once that thread is interrupted.
+ */
+public interface ProgressListener {
+	
+	// Records of the background database compiled so far, total may be an estimate or 0 while it is not known yet
+	public void recordsParsed(int records, int total);
+	
+	// Kinases of the library tested so far
+	public void kinasesScored(int kinases, int total);
+}
@@ -0,0 +1,353 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/*
+ * Bounded cache of enrichment results for gene lists that are submitted again,
+ * e.g. the same signature in another sort order. Results are keyed by the
+ * background and its version, the level and the encoded input, i.e. the
+ * upper-cased gene list filtered against the universe, so case, order,
+ * duplicates and genes outside of the background do not matter. A cached result
+ * serves every sort order, see EnrichmentResult.ordered(). The least recently
+ * used results are evicted once more than maximumSize are held, a maximum size
+ * of 0 keeps nothing in memory.
+ * 
+ * With a directory (kea.results.dir for the shared cache) the p-values of every
+ * result are also written to disk, and the kinases of a result found there are
+ * rebuilt without running a single Fisher exact test, also after a restart.
+ * The least recently used files are deleted once more than maximumFiles are
+ * in the directory (kea.results.files for the shared cache), which also
+ * reclaims the files of outdated backgrounds.
+ * 
+ * Cached results are shared by every query that hits them and must be treated
+ * as read-only.
+ */
+public final class ResultCache {
+	
+	static Logger log = Logger.getLogger(ResultCache.class.getSimpleName());
+	
+	public static final int DEFAULT_MAXIMUM_SIZE = 256;
+	public static final int DEFAULT_MAXIMUM_FILES = 4096;
+	public static final String DIRECTORY = "kea.results.dir";
+	public static final String EXTENSION = ".result";
+	
+	// "KEAR"
+	private final static int MAGIC = 0x4B454152;
+	private final static int VERSION = 2;
+	
+	private static final ResultCache shared = new ResultCache(Integer.getInteger("kea.results.size", DEFAULT_MAXIMUM_SIZE),
+			System.getProperty(DIRECTORY) == null ? null : new File(System.getProperty(DIRECTORY)),
+			Integer.getInteger("kea.results.files", DEFAULT_MAXIMUM_FILES));
+	
+	// Access-ordered so iteration starts at the least recently used result
+	private final LinkedHashMap<Key, EnrichmentResult> results = new LinkedHashMap<Key, EnrichmentResult>(16, 0.75f, true);
+	private int maximumSize;
+	private final File directory;
+	
+	// Access-ordered files of the directory, listed on first use and guarded by the lock on this
+	private LinkedHashMap<String, File> files;
+	private int maximumFiles;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong diskEvictions = new AtomicLong();
+	
+	// Without a directory results are only cached in memory
+	public ResultCache(int maximumSize, File directory) {
+		this(maximumSize, directory, DEFAULT_MAXIMUM_FILES);
+	}
+	
+	public ResultCache(int maximumSize, File directory, int maximumFiles) {
+		if (maximumSize < 0 || maximumFiles < 0)
+			throw new IllegalArgumentException("Cache size must not be negative.");
+		this.maximumSize = maximumSize;
+		this.directory = directory;
+		this.maximumFiles = maximumFiles;
+	}
+	
+	// Process-wide cache used by KEA and KEAServer
+	public static ResultCache getShared() {
+		return shared;
+	}
+	
+	public File getDirectory() {
+		return directory;
+	}
+	
+	// Result in memory
+	EnrichmentResult get(Key key) {
+		EnrichmentResult result;
+		synchronized (results) {
+			result = results.get(key);
+		}
+		if (result != null)
+			hits.incrementAndGet();
+		return result;
+	}
+	
+	// P-values by kinase id of a result on disk, null if there is none
+	double[] load(Key key) {
+		if (directory != null) {
+			File file = fileFor(key);
+			if (file.exists()) {
+				try {
+					double[] pvalues = read(file, key);
+					if (pvalues != null) {
+						diskHits.incrementAndGet();
+						touch(file);
+						return pvalues;
+					}
+				} catch (IOException e) {
+					log.warning("Ignoring " + file + ": " + e.getMessage());
+				}
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+	
+	// Keeps a result in memory, and its p-values on disk if given
+	void put(Key key, EnrichmentResult result, double[] pvalues) {
+		synchronized (results) {
+			if (maximumSize > 0) {
+				results.put(key, result);
+				evict();
+			}
+		}
+		
+		if (directory != null && pvalues != null) {
+			File file = fileFor(key);
+			try {
+				directory.mkdirs();
+				write(file, key, pvalues);
+				touch(file);
+			} catch (IOException e) {
+				log.warning("Unable to write " + file + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	public void clear() {
+		synchronized (results) {
+			results.clear();
+		}
+	}
+	
+	public int size() {
+		synchronized (results) {
+			return results.size();
+		}
+	}
+	
+	public void setMaximumSize(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("Cache size must not be negative.");
+		synchronized (results) {
+			maximumSize = size;
+			evict();
+		}
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	public long getDiskEvictions() {
+		return diskEvictions.get();
+	}
+	
+	public synchronized void setMaximumFiles(int files) {
+		if (files < 0)
+			throw new IllegalArgumentException("Cache size must not be negative.");
+		maximumFiles = files;
+		evictFiles();
+	}
+	
+	// Fraction of lookups answered from memory or disk
+	public double getHitRate() {
+		long found = hits.get() + diskHits.get();
+		long lookups = found + misses.get();
+		return lookups > 0 ? (double) found / lookups : 0;
+	}
+	
+	// Must hold the lock on results
+	private void evict() {
+		Iterator<Map.Entry<Key, EnrichmentResult>> itr = results.entrySet().iterator();
+		while (results.size() > maximumSize && itr.hasNext()) {
+			itr.next();
+			itr.remove();
+			evictions.incrementAndGet();
+		}
+	}
+	
+	// Marks a file as the most recently used one and deletes the least recently used ones past maximumFiles
+	private synchronized void touch(File file) {
+		if (files == null) {
+			files = new LinkedHashMap<String, File>(16, 0.75f, true);
+			File[] listed = directory.listFiles();
+			if (listed != null) {
+				// Oldest first, so files of earlier runs are evicted before new ones
+				Arrays.sort(listed, new Comparator<File>() {
+					public int compare(File f1, File f2) {
+						return Long.compare(f1.lastModified(), f2.lastModified());
+					}
+				});
+				for (File listedFile : listed)
+					if (listedFile.getName().endsWith(EXTENSION))
+						files.put(listedFile.getName(), listedFile);
+			}
+		}
+		files.put(file.getName(), file);
+		evictFiles();
+	}
+	
+	// Must hold the lock on this
+	private void evictFiles() {
+		if (files == null)
+			return;
+		Iterator<File> itr = files.values().iterator();
+		while (files.size() > maximumFiles && itr.hasNext()) {
+			File eldest = itr.next();
+			itr.remove();
+			if (eldest.delete())
+				diskEvictions.incrementAndGet();
+		}
+	}
+	
+	private File fileFor(Key key) {
+		return new File(directory, Long.toHexString(key.fingerprint) + EXTENSION);
+	}
+	
+	/*
+	 * Layout: magic, version, the complete key (interactions, background version,
+	 * level, ranks, input words) and one p-value per kinase of the
+	 * library. The key is compared in full, so fingerprint collisions are misses.
+	 */
+	private static void write(File file, Key key, double[] pvalues) throws IOException {
+		// Moved into place so readers never see a partial file
+		File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(key.interactions);
+				out.writeLong(key.version);
+				out.writeUTF(key.level);
+				out.writeBoolean(key.ranked);
+				out.writeInt(key.input.length);
+				for (long word : key.input)
+					out.writeLong(word);
+				out.writeInt(pvalues.length);
+				for (double pvalue : pvalues)
+					out.writeDouble(pvalue);
+			} finally {
+				out.close();
+			}
+			
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Unable to move result to " + file);
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+	
+	private static double[] read(File file, Key key) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			if (!in.readUTF().equals(key.interactions) || in.readLong() != key.version || !in.readUTF().equals(key.level)
+					|| in.readBoolean() != key.ranked || in.readInt() != key.input.length)
+				return null;
+			for (long word : key.input)
+				if (in.readLong() != word)
+					return null;
+			
+			double[] pvalues = new double[in.readInt()];
+			for (int kinase = 0; kinase < pvalues.length; kinase++)
+				pvalues[kinase] = in.readDouble();
+			return pvalues;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/*
+	 * Identifies a result in any sort order. The encoded input is canonical for
+	 * its background, so equal gene sets get equal keys; ranked tells results
+	 * with rank statistics from those computed before the ranks were loaded.
+	 */
+	static final class Key {
+		
+		private final String interactions;
+		private final long version;
+		private final String level;
+		private final boolean ranked;
+		private final long[] input;
+		private final long fingerprint;
+		
+		Key(BackgroundLibrary library, boolean ranked, long[] input) {
+			this.interactions = library.getInteractions();
+			this.version = library.getIndex().getVersion();
+			this.level = library.getLevel();
+			this.ranked = ranked;
+			this.input = input;
+			
+			long hash = BackgroundIndex.mix(0xCBF29CE484222325L, interactions.hashCode());
+			hash = BackgroundIndex.mix(hash, version);
+			hash = BackgroundIndex.mix(hash, level.hashCode());
+			hash = BackgroundIndex.mix(hash, ranked ? 1 : 0);
+			for (long word : input)
+				hash = BackgroundIndex.mix(hash, word);
+			this.fingerprint = hash;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (int) (fingerprint ^ (fingerprint >>> 32));
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return fingerprint == other.fingerprint && version == other.version && ranked == other.ranked
+					&& interactions.equals(other.interactions) && level.equals(other.level) && Arrays.equals(input, other.input);
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+
+/*
+ * Streams enrichment results to an output stream as CSV, TSV or the @Expose
+ * JSON view of Kinase. Rows are written straight into a buffered writer
+ * through one reused line buffer, so large batches never build the whole
+ * output (or one string per kinase) in memory.
+ * 
+ * Batch output adds the gene list name as the first column, or is a JSON
+ * object with one array of kinases per gene list. With a cutoff only kinases
+ * with a Benjamini-Hochberg adjusted p-value up to the cutoff are written.
+ */
+public class ResultWriter implements Closeable {
+	
+	public enum Format {
+		CSV, TSV, JSON;
+		
+		// Picks the format from the file extension, CSV by default
+		public static Format forFile(String filename) {
+			String lower = filename.toLowerCase();
+			if (lower.endsWith(".tsv"))
+				return TSV;
+			else if (lower.endsWith(".json"))
+				return JSON;
+			else
+				return CSV;
+		}
+	}
+	
+	public final static String[] COLUMNS = {"Kinase", "Substrates in Input", "Substrates in Database", "Input Fraction", "Database Fraction", "Difference", "P-value", "Z-score", "Combined Score", "Substrates", "Adjusted P-value", "Bonferroni P-value"};
+	public final static String LIST_COLUMN = "Gene List";
+	
+	private final static int BUFFER_SIZE = 1 << 16;
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private final Writer out;
+	private final Format format;
+	private final boolean batch;
+	
+	private final StringBuilder line = new StringBuilder(256);
+	
+	private JsonWriter json;
+	private Gson gson;
+	
+	private boolean started = false;
+	private double cutoff = 1;
+	
+	public ResultWriter(OutputStream out, Format format, boolean batch) {
+		this.out = new BufferedWriter(new OutputStreamWriter(out, UTF_8), BUFFER_SIZE);
+		this.format = format;
+		this.batch = batch;
+	}
+	
+	// Adjusted p-value up to which kinases are written, 1 writes all of them
+	public void setCutoff(double cutoff) {
+		this.cutoff = cutoff;
+	}
+	
+	public static ResultWriter open(String filename, boolean batch) throws IOException {
+		return new ResultWriter(new FileOutputStream(filename), Format.forFile(filename), batch);
+	}
+	
+	public static String header(String delimiter, boolean batch) {
+		StringBuilder header = new StringBuilder();
+		if (batch)
+			header.append(LIST_COLUMN).append(delimiter);
+		for (int i = 0; i < COLUMNS.length; i++) {
+			if (i > 0)
+				header.append(delimiter);
+			header.append(COLUMNS[i]);
+		}
+		return header.toString();
+	}
+	
+	public void write(EnrichmentResult result) throws IOException {
+		write(null, result);
+	}
+	
+	// Writes the full ranking of one gene list, without keeping kinases in the result
+	public void write(String listName, EnrichmentResult result) throws IOException {
+		int[] hits = result.getRanking();
+		long startTime = System.nanoTime();
+		start();
+		
+		if (format == Format.JSON) {
+			if (batch) {
+				json.name(listName);
+				json.beginArray();
+			}
+			for (int hit : hits)
+				if (result.getAdjustedPValue(hit) <= cutoff)
+					gson.toJson(result.createKinase(hit), Kinase.class, json);
+			if (batch)
+				json.endArray();
+		}
+		else {
+			char delimiter = (format == Format.TSV) ? '\t' : ',';
+			for (int hit : hits) {
+				if (result.getAdjustedPValue(hit) > cutoff)
+					continue;
+				line.setLength(0);
+				if (batch)
+					line.append(listName).append(delimiter);
+				appendRow(line, result, hit, delimiter);
+				line.append('\n');
+				out.append(line);
+			}
+		}
+		EnrichmentMetrics.record(EnrichmentMetrics.Stage.SERIALIZATION, startTime);
+	}
+	
+	public void flush() throws IOException {
+		if (json != null)
+			json.flush();
+		out.flush();
+	}
+	
+	// Finishes the document, an empty result set still gets its header or brackets
+	public void close() throws IOException {
+		start();
+		if (format == Format.JSON) {
+			if (batch)
+				json.endObject();
+			else
+				json.endArray();
+			json.close();
+		}
+		else
+			out.close();
+	}
+	
+	private void start() throws IOException {
+		if (started)
+			return;
+		started = true;
+		
+		if (format == Format.JSON) {
+			gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+			json = new JsonWriter(out);
+			if (batch)
+				json.beginObject();
+			else
+				// Single results are one array that each write appends to
+				json.beginArray();
+		}
+		else {
+			out.write(header((format == Format.TSV) ? "\t" : ",", batch));
+			out.write('\n');
+		}
+	}
+	
+	// Same columns as Kinase.toString()
+	static void appendRow(StringBuilder line, Kinase kinase, char delimiter) {
+		line.append(kinase.getName()).append(delimiter);
+		line.append(kinase.getEnrichedSubstrates().size()).append(delimiter);
+		line.append(kinase.getSubstrates().size()).append(delimiter);
+		appendScores(line, kinase.getFractionOfSubstratesInInput(), kinase.getFractionOfSubstratesInBackground(), kinase.getPValue(),
+				kinase.getZScore(), kinase.getCombinedScore(), delimiter);
+		appendSubstrates(line, kinase.getEnrichedSubstrates());
+		appendAdjustedPValues(line, kinase.getAdjustedPValue(), kinase.getBonferroniPValue(), delimiter);
+	}
+	
+	// Same columns, read from the primitive columns of a result
+	static void appendRow(StringBuilder line, EnrichmentResult result, int hit, char delimiter) {
+		line.append(result.getName(hit)).append(delimiter);
+		line.append(result.getOverlap(hit)).append(delimiter);
+		line.append(result.getKinaseSize(hit)).append(delimiter);
+		appendScores(line, (double) result.getOverlap(hit)/result.getInputSize(), (double) result.getKinaseSize(hit)/result.getUniverseSize(), result.getPValue(hit),
+				result.getZScore(hit), result.getCombinedScore(hit), delimiter);
+		appendSubstrates(line, result.getEnrichedSubstrates(hit));
+		appendAdjustedPValues(line, result.getAdjustedPValue(hit), result.getBonferroniPValue(hit), delimiter);
+	}
+	
+	private static void appendScores(StringBuilder line, double inputFraction, double backgroundFraction, double pvalue,
+			double zscore, double combinedScore, char delimiter) {
+		line.append(inputFraction).append(delimiter);
+		line.append(backgroundFraction).append(delimiter);
+		line.append(inputFraction - backgroundFraction).append(delimiter);
+		line.append(pvalue).append(delimiter).append(zscore).append(delimiter).append(combinedScore).append(delimiter);
+	}
+	
+	// Last, so readers of the original columns find them where they always were
+	private static void appendAdjustedPValues(StringBuilder line, double adjustedPValue, double bonferroniPValue, char delimiter) {
+		line.append(delimiter).append(adjustedPValue).append(delimiter).append(bonferroniPValue);
+	}
+	
+	private static void appendSubstrates(StringBuilder line, Collection<String> enrichedSubstrates) {
+		boolean firstSubstrate = true;
+		for (String enrichedSubstrate : enrichedSubstrates) {
+			if (firstSubstrate)
+				firstSubstrate = false;
+			else
+				line.append(';');
+			line.append(enrichedSubstrate);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.nio.IntBuffer;
+
+/*
+ * Overlap kernels for sets kept as sorted arrays of distinct substrate ids,
+ * the alternative to the bitset AND of BackgroundLibrary for sparse sets: a
+ * kinase with a few dozen substrates in a universe of thousands costs a few
+ * dozen comparisons instead of a word for every 64 substrates of the universe.
+ * 
+ * Sets of similar size are merged, a set much smaller than the other one
+ * gallops through it: every id searches exponentially and then binary from
+ * where the previous one was found, so the cost is about the size of the small
+ * set times the log of the ratio of the sizes.
+ * 
+ * Sets are views, e.g. of a LibrarySnapshot, read with absolute gets from 0 to
+ * their limit.
+ */
+final class SortedIntersection {
+	
+	// Relative to a bitset word, measured with IntersectionBenchmark
+	private final static double MERGE_COST = 6;
+	private final static double GALLOP_COST = 6;
+	
+	private SortedIntersection() {
+	}
+	
+	// Number of ids in both sets, by the cheaper of merging and galloping
+	static int size(IntBuffer a, IntBuffer b) {
+		if (a.limit() > b.limit())
+			return size(b, a);
+		if (gallopCost(a.limit(), b.limit()) < mergeCost(a.limit(), b.limit()))
+			return gallop(a, b);
+		return merge(a, b);
+	}
+	
+	static int size(int[] a, int[] b) {
+		return size(IntBuffer.wrap(a), IntBuffer.wrap(b));
+	}
+	
+	// Cost of size(), in bitset words
+	static double cost(int a, int b) {
+		return Math.min(mergeCost(a, b), gallopCost(Math.min(a, b), Math.max(a, b)));
+	}
+	
+	static double mergeCost(int a, int b) {
+		return MERGE_COST * (a + b);
+	}
+	
+	static double gallopCost(int small, int large) {
+		return GALLOP_COST * small * (1 + log2(large / Math.max(1, small)));
+	}
+	
+	static int merge(int[] a, int[] b) {
+		return merge(IntBuffer.wrap(a), IntBuffer.wrap(b));
+	}
+	
+	static int merge(IntBuffer a, IntBuffer b) {
+		int count = 0;
+		int i = 0;
+		int j = 0;
+		while (i < a.limit() && j < b.limit()) {
+			int x = a.get(i);
+			int y = b.get(j);
+			if (x < y)
+				i++;
+			else if (x > y)
+				j++;
+			else {
+				count++;
+				i++;
+				j++;
+			}
+		}
+		return count;
+	}
+	
+	static int gallop(int[] small, int[] large) {
+		return gallop(IntBuffer.wrap(small), IntBuffer.wrap(large));
+	}
+	
+	static int gallop(IntBuffer small, IntBuffer large) {
+		int count = 0;
+		int low = 0;
+		int size = large.limit();
+		for (int i = 0; i < small.limit(); i++) {
+			int id = small.get(i);
+			// Exponential search for a bound past id, then binary search below it
+			int step = 1;
+			int high = low;
+			while (high < size && large.get(high) < id) {
+				low = high + 1;
+				high += step;
+				step <<= 1;
+			}
+			high = Math.min(high, size - 1);
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int found = large.get(middle);
+				if (found < id)
+					low = middle + 1;
+				else if (found > id)
+					high = middle - 1;
+				else {
+					count++;
+					low = middle + 1;
+					break;
+				}
+			}
+			if (low >= size)
+				break;
+		}
+		return count;
+	}
+	
+	private static int log2(int n) {
+		return 31 - Integer.numberOfLeadingZeros(Math.max(1, n));
+	}
+}
@@ -0,0 +1,99 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class BackgroundRegistryTest extends TestCase {
+	
+	private final static String NAME = "registry test";
+	
+	private File directory;
+	private String ranksDirectory;
+	
+	@Override
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("kea", "");
+		directory.delete();
+		directory.mkdirs();
+		ranksDirectory = System.setProperty(BackgroundRanks.DIRECTORY, directory.getPath());
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		BackgroundRegistry.unregister(NAME);
+		if (ranksDirectory == null)
+			System.clearProperty(BackgroundRanks.DIRECTORY);
+		else
+			System.setProperty(BackgroundRanks.DIRECTORY, ranksDirectory);
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+	
+	// A reloaded file of the same shape gets rank statistics and combined scores of its new contents
+	public void testReloadRefreshesCombinedScores() throws Exception {
+		File file = TestBackground.write(TestBackground.records(1), new File(directory, "background.csv"));
+		BackgroundRegistry.register(NAME, file);
+		BackgroundLibrary before = BackgroundCache.get(NAME, KEA.KINASE_LEVEL);
+		ArrayList<String> genes = TestBackground.geneList(before, 100, 7, 3);
+		Map<String, Double> scores = combinedScores(genes);
+		
+		// Same kinases and substrates, the substrates shuffled between the records
+		ArrayList<String> records = TestBackground.records(1);
+		ArrayList<String> substrates = new ArrayList<String>();
+		for (String record : records)
+			substrates.add(record.substring(record.lastIndexOf(',')));
+		Collections.shuffle(substrates, new Random(2));
+		ArrayList<String> shuffled = new ArrayList<String>();
+		for (int i = 0; i < records.size(); i++)
+			shuffled.add(records.get(i).substring(0, records.get(i).lastIndexOf(',')) + substrates.get(i));
+		TestBackground.write(shuffled, file);
+		file.setLastModified(file.lastModified() + 2000);
+		BackgroundRegistry.reload(NAME);
+		
+		BackgroundLibrary after = BackgroundCache.get(NAME, KEA.KINASE_LEVEL);
+		assertTrue(before.getIndex().getVersion() != after.getIndex().getVersion());
+		assertEquals(before.size(), after.size());
+		assertEquals(before.getUniverseSize(), after.getUniverseSize());
+		
+		BackgroundRanks expected = BackgroundRanks.generate(after, BackgroundRanks.DEFAULT_PERMUTATIONS, BackgroundRanks.DEFAULT_LIST_SIZE, BackgroundRanks.DEFAULT_SEED);
+		BackgroundRanks loaded = after.getRanks();
+		for (int kinase = 0; kinase < after.size(); kinase++) {
+			assertEquals(after.getKinaseName(kinase), expected.getMean(kinase), loaded.getMean(kinase), 0);
+			assertEquals(after.getKinaseName(kinase), expected.getStandardDeviation(kinase), loaded.getStandardDeviation(kinase), 0);
+		}
+		
+		Map<String, Double> reloaded = combinedScores(genes);
+		int changed = 0;
+		for (Map.Entry<String, Double> score : reloaded.entrySet())
+			if (!score.getValue().equals(scores.get(score.getKey())))
+				changed++;
+		assertTrue(changed > 0);
+	}
+	
+	// A registered file keeps its substrates as written, like the same records parsed in memory
+	public void testKeepsCaseOfSubstrates() throws Exception {
+		ArrayList<String> records = new ArrayList<String>();
+		for (String record : TestBackground.records(1))
+			records.add((record.hashCode() % 3 == 0) ? record.toLowerCase() : record);
+		File file = TestBackground.write(records, new File(directory, "background.csv"));
+		BackgroundIndex registered = BackgroundRegistry.register(NAME, file, false);
+		BackgroundIndex parsed = LibrarySnapshot.compile(records).toIndex(NAME);
+		assertEquals(parsed.getVersion(), registered.getVersion());
+		assertEquals(parsed.getSubstrateUniverse(), registered.getSubstrateUniverse());
+	}
+	
+	private static Map<String, Double> combinedScores(List<String> genes) {
+		HashMap<String, Double> scores = new HashMap<String, Double>();
+		for (Kinase kinase : new EnrichmentEngine(KEA.COMBINED_SCORE).enrich(NAME, KEA.KINASE_LEVEL, genes).getRankedKinases())
+			scores.put(kinase.getName(), kinase.getCombinedScore());
+		return scores;
+	}
+}
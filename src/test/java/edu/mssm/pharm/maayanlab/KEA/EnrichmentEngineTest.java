@@ -0,0 +1,91 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import junit.framework.TestCase;
+
+public class EnrichmentEngineTest extends TestCase {
+	
+	// Large enough for the Fisher's tests of a long list to be split over a pool
+	private static BackgroundLibrary large;
+	
+	@Override
+	protected void setUp() throws Exception {
+		if (large == null)
+			large = BackgroundLibrary.parse("large", KEA.KINASE_LEVEL, TestBackground.records(5, 300, 20000, 300000));
+	}
+	
+	// Parallel scoring gives the same p-values and ranking as scoring on the calling thread
+	public void testParallelMatchesSequential() {
+		CountingPool pool = new CountingPool();
+		try {
+			for (int size : new int[] { 50, 8000 }) {
+				List<String> genes = genes(large, size, size);
+				EnrichmentResult sequential = new EnrichmentEngine(KEA.PVALUE).enrich(large, genes);
+				EnrichmentResult parallel = new EnrichmentEngine(KEA.PVALUE).withPool(pool).enrich(large, genes);
+				assertSameKinases(sequential.getRankedKinases(), parallel.getRankedKinases());
+			}
+			// Only the long list is worth forking
+			assertEquals(1, pool.invocations);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	// Screening at a cutoff keeps the p-values of the kinases below it and every kinase with an adjusted p-value below it
+	public void testCutoffMatchesFullScoring() {
+		BackgroundLibrary library = TestBackground.library(KEA.KINASE_LEVEL);
+		for (int size : new int[] { 20, 100, 400 }) {
+			List<String> genes = TestBackground.geneList(library, size, size, 1, 4, 9);
+			EnrichmentResult full = new EnrichmentEngine(KEA.PVALUE).enrich(library, genes);
+			for (double cutoff : new double[] { 0.001, 0.05, 0.5 }) {
+				EnrichmentResult screened = new EnrichmentEngine(KEA.PVALUE).withCutoff(cutoff).enrich(library, genes);
+				assertSameKinases(full.getTopRanked(full.size(), cutoff), screened.getTopRanked(screened.size(), cutoff));
+				
+				HashMap<String, Double> pvalues = new HashMap<String, Double>();
+				for (Kinase kinase : screened.getRankedKinases())
+					pvalues.put(kinase.getName(), kinase.getPValue());
+				for (Kinase kinase : full.getRankedKinases()) {
+					double expected = (kinase.getPValue() <= cutoff) ? kinase.getPValue() : 1;
+					assertEquals(kinase.getName(), expected, pvalues.get(kinase.getName()), 0);
+				}
+			}
+		}
+	}
+	
+	static void assertSameKinases(List<Kinase> expected, List<Kinase> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getName(), actual.get(i).getName());
+			assertEquals(expected.get(i).getName(), expected.get(i).getPValue(), actual.get(i).getPValue(), 0);
+			assertEquals(expected.get(i).getName(), expected.get(i).getAdjustedPValue(), actual.get(i).getAdjustedPValue(), 0);
+			assertEquals(expected.get(i).getName(), expected.get(i).getEnrichedSubstrates(), actual.get(i).getEnrichedSubstrates());
+		}
+	}
+	
+	// Random substrates of the library
+	static List<String> genes(BackgroundLibrary library, int size, long seed) {
+		Random random = new Random(seed);
+		ArrayList<String> genes = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++)
+			genes.add(library.getIndex().getSubstrateName(random.nextInt(library.getUniverseSize())));
+		return genes;
+	}
+	
+	// Counts the queries that were split over the pool
+	private static final class CountingPool extends ForkJoinPool {
+		
+		private int invocations;
+		
+		@Override
+		public <T> T invoke(ForkJoinTask<T> task) {
+			invocations++;
+			return super.invoke(task);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import com.google.gson.Gson;
+
+public class KEAServerTest extends TestCase {
+	
+	private final static String NAME = "server test";
+	private final static int CONCURRENT_REQUESTS = 8;
+	
+	static {
+		// A batch window wide enough for all concurrent requests of a test to land in one batch
+		System.setProperty("kea.server.batch.window", "500000");
+	}
+	
+	private File directory;
+	private String ranksDirectory;
+	private KEAServer server;
+	private ArrayList<String> genes;
+	
+	@Override
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("kea", "");
+		directory.delete();
+		directory.mkdirs();
+		ranksDirectory = System.setProperty(BackgroundRanks.DIRECTORY, directory.getPath());
+		
+		File file = TestBackground.write(TestBackground.records(1), new File(directory, "background.csv"));
+		BackgroundRegistry.register(NAME, file);
+		genes = TestBackground.geneList(BackgroundCache.get(NAME, KEA.KINASE_LEVEL), 100, 7, 3);
+		
+		server = new KEAServer(new InetSocketAddress("localhost", 0));
+		server.start();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+		BackgroundRegistry.unregister(NAME);
+		if (ranksDirectory == null)
+			System.clearProperty(BackgroundRanks.DIRECTORY);
+		else
+			System.setProperty(BackgroundRanks.DIRECTORY, ranksDirectory);
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+	
+	public void testValidRequest() throws Exception {
+		String[] response = post(request(genes, KEA.KINASE_LEVEL, KEA.PVALUE));
+		assertEquals("200", response[0]);
+		
+		List<Kinase> expected = new EnrichmentEngine(KEA.PVALUE).enrich(NAME, KEA.KINASE_LEVEL, genes).getRankedKinases();
+		Object[] kinases = new Gson().fromJson(response[1], Object[].class);
+		assertEquals(expected.size(), kinases.length);
+	}
+	
+	// Concurrent requests for the same list, spelled differently, are scored once
+	public void testBatchIsCoalesced() throws Exception {
+		ExecutorService clients = Executors.newFixedThreadPool(CONCURRENT_REQUESTS);
+		try {
+			ArrayList<Future<String[]>> responses = new ArrayList<Future<String[]>>();
+			for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+				ArrayList<String> spelling = new ArrayList<String>();
+				for (String gene : genes)
+					spelling.add((i % 2 == 0) ? gene : gene.toLowerCase());
+				final String body = request(spelling, KEA.KINASE_LEVEL, KEA.COMBINED_SCORE);
+				responses.add(clients.submit(new Callable<String[]>() {
+					public String[] call() throws IOException {
+						return post(body);
+					}
+				}));
+			}
+			
+			String first = null;
+			for (Future<String[]> response : responses) {
+				assertEquals("200", response.get()[0]);
+				if (first == null)
+					first = response.get()[1];
+				assertEquals(first, response.get()[1]);
+			}
+		} finally {
+			clients.shutdown();
+		}
+		assertEquals(server.getMetrics(), CONCURRENT_REQUESTS - 1, (int) metric("coalesced_requests"));
+	}
+	
+	public void testInvalidQueries() throws Exception {
+		assertEquals("400", post(request(genes, "bogus", KEA.PVALUE))[0]);
+		assertEquals("400", post(request(genes, KEA.KINASE_LEVEL, "bogus"))[0]);
+	}
+	
+	private String request(List<String> genes, String level, String sortBy) {
+		StringBuilder json = new StringBuilder("{\"library\": \"").append(NAME).append("\", \"level\": \"").append(level).append("\", \"sortBy\": \"").append(sortBy).append("\", \"genes\": [");
+		for (int i = 0; i < genes.size(); i++)
+			json.append((i > 0) ? ", \"" : "\"").append(genes.get(i)).append('"');
+		return json.append("]}").toString();
+	}
+	
+	// Status code and body of a POST to /enrich
+	private String[] post(String body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/enrich").openConnection();
+		try {
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			OutputStream out = connection.getOutputStream();
+			out.write(body.getBytes("UTF-8"));
+			out.close();
+			
+			int status = connection.getResponseCode();
+			InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for (int read; (read = in.read(buffer)) != -1;)
+				bytes.write(buffer, 0, read);
+			in.close();
+			return new String[] { Integer.toString(status), new String(bytes.toByteArray(), "UTF-8") };
+		} finally {
+			connection.disconnect();
+		}
+	}
+	
+	private double metric(String name) {
+		for (String line : server.getMetrics().split("\n"))
+			if (line.startsWith(name + " "))
+				return Double.parseDouble(line.substring(name.length() + 1));
+		throw new IllegalArgumentException("No metric " + name);
+	}
+}
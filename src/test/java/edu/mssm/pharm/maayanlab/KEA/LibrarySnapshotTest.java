@@ -0,0 +1,94 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class LibrarySnapshotTest extends TestCase {
+	
+	// Streaming a resource compiles the same background as the records in memory, with progress all along
+	public void testStreamedResourceReportsProgress() throws Exception {
+		// Enough records for several progress reports
+		ArrayList<String> records = new ArrayList<String>();
+		for (int seed = 1; seed <= 8; seed++)
+			records.addAll(TestBackground.records(seed));
+		File file = TestBackground.write(records, File.createTempFile("kea", ".csv"));
+		try {
+			final ArrayList<int[]> reports = new ArrayList<int[]>();
+			ProgressListener listener = new ProgressListener() {
+				public void recordsParsed(int records, int total) {
+					reports.add(new int[] { records, total });
+				}
+				
+				public void kinasesScored(int kinases, int total) {
+				}
+			};
+			LibrarySnapshot streamed = LibrarySnapshot.compile(new String[] { file.getPath() }, listener);
+			
+			assertEquals(LibrarySnapshot.compile(records).toIndex("test").getVersion(), streamed.toIndex("test").getVersion());
+			assertTrue(reports.size() > 1);
+			int[] last = reports.get(reports.size() - 1);
+			assertEquals(records.size(), last[0]);
+			assertEquals(records.size(), last[1]);
+			for (int[] report : reports.subList(0, reports.size() - 1)) {
+				assertTrue(report[1] > report[0]);
+				assertTrue(report[1] <= 2 * records.size());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	
+	// A mapped snapshot serves the same libraries as the compiled one
+	public void testMappedMatchesCompiled() throws Exception {
+		LibrarySnapshot compiled = LibrarySnapshot.compile(TestBackground.records(1));
+		File file = File.createTempFile("kea", LibrarySnapshot.EXTENSION);
+		try {
+			compiled.write(file);
+			BackgroundIndex expected = compiled.toIndex("test");
+			BackgroundIndex mapped = LibrarySnapshot.read(file).toIndex("test");
+			assertEquals(expected.getVersion(), mapped.getVersion());
+			assertEquals(expected.getSubstrateUniverse(), mapped.getSubstrateUniverse());
+			
+			for (String level : BackgroundIndex.LEVELS) {
+				BackgroundLibrary library = expected.getLibrary(level);
+				List<String> genes = TestBackground.geneList(library, 200, 3, 1);
+				genes.add("NOT A SUBSTRATE");
+				long[] input = mapped.encode(genes);
+				assertTrue(Arrays.equals(expected.encode(genes), input));
+				assertEquals(expected.getLibrary(level).getKinaseSubstrates(), mapped.getLibrary(level).getKinaseSubstrates());
+				for (int kinase = 0; kinase < library.size(); kinase++)
+					assertEquals(library.overlappingSubstrates(kinase, input), mapped.getLibrary(level).overlappingSubstrates(kinase, input));
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	
+	// A snapshot is rejected once the resource it was compiled from changes
+	public void testChangedResourceRejectsSnapshot() throws Exception {
+		File file = TestBackground.write(TestBackground.records(1), File.createTempFile("kea", ".csv"));
+		File snapshot = File.createTempFile("kea", LibrarySnapshot.EXTENSION);
+		try {
+			String[] resources = { file.getPath() };
+			LibrarySnapshot.compile(resources, null).write(snapshot);
+			assertEquals(LibrarySnapshot.sourceFingerprint(resources), LibrarySnapshot.read(snapshot, LibrarySnapshot.sourceFingerprint(resources)).getSource());
+			
+			TestBackground.write(TestBackground.records(2), file);
+			file.setLastModified(file.lastModified() + 2000);
+			try {
+				LibrarySnapshot.read(snapshot, LibrarySnapshot.sourceFingerprint(resources));
+				fail("Snapshot of the old resource was accepted");
+			} catch (IOException e) {
+				// Expected, BackgroundCache recompiles
+			}
+		} finally {
+			file.delete();
+			snapshot.delete();
+		}
+	}
+}
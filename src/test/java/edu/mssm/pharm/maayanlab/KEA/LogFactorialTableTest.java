@@ -0,0 +1,63 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import junit.framework.TestCase;
+import pal.statistics.FisherExact;
+
+public class LogFactorialTableTest extends TestCase {
+	
+	// Small fixed background: universe, kinase sizes and input list sizes of every table tested
+	private final static int UNIVERSE = 400;
+	private final static int[] KINASE_SIZES = { 1, 2, 5, 20, 60, 150, 399 };
+	private final static int[] INPUT_SIZES = { 1, 5, 40, 150, 400 };
+	
+	// Every overlap of every kinase and input size, exactly as FisherExact computes it
+	public void testMatchesFisherExact() {
+		LogFactorialTable table = new LogFactorialTable();
+		for (int inputSize : INPUT_SIZES) {
+			FisherExact fisher = new FisherExact(inputSize + UNIVERSE);
+			for (int kinaseSize : KINASE_SIZES) {
+				for (int overlap = 0; overlap <= Math.min(inputSize, kinaseSize); overlap++) {
+					int a = overlap, b = inputSize - overlap, c = kinaseSize, d = UNIVERSE - kinaseSize;
+					assertEquals(fisher.getP(a, b, c, d), table.getP(a, b, c, d), 0);
+					assertEquals(fisher.getRightTailedP(a, b, c, d), table.getRightTailedP(a, b, c, d), 0);
+				}
+			}
+		}
+	}
+	
+	// Tests with a cutoff are exact up to the cutoff and above it otherwise
+	public void testCutoffMatchesFullTest() {
+		LogFactorialTable table = new LogFactorialTable();
+		for (int inputSize : INPUT_SIZES) {
+			for (int kinaseSize : KINASE_SIZES) {
+				for (int overlap = 0; overlap <= Math.min(inputSize, kinaseSize); overlap++) {
+					int a = overlap, b = inputSize - overlap, c = kinaseSize, d = UNIVERSE - kinaseSize;
+					double full = table.getRightTailedP(a, b, c, d);
+					for (double cutoff : new double[] { 1e-6, 0.01, 0.05, 0.5, 0.9 }) {
+						double p = table.getRightTailedP(a, b, c, d, cutoff);
+						if (full <= cutoff)
+							assertEquals(full, p, 0);
+						else
+							assertTrue(p > cutoff);
+					}
+				}
+			}
+		}
+	}
+	
+	// Growing the table keeps every value it had and matches a table built at full size
+	public void testGrowthKeepsValues() {
+		LogFactorialTable grown = new LogFactorialTable(10);
+		double[] before = new double[11];
+		for (int n = 0; n <= 10; n++)
+			before[n] = grown.logFactorial(n);
+		
+		LogFactorialTable full = new LogFactorialTable(5000);
+		assertEquals(full.logFactorial(5000), grown.logFactorial(5000), 0);
+		assertTrue(grown.capacity() >= 5000);
+		for (int n = 0; n <= 5000; n++)
+			assertEquals(full.logFactorial(n), grown.logFactorial(n), 0);
+		for (int n = 0; n <= 10; n++)
+			assertEquals(before[n], grown.logFactorial(n), 0);
+	}
+}
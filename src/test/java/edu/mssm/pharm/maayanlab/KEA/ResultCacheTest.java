@@ -0,0 +1,95 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ResultCacheTest extends TestCase {
+	
+	private File directory;
+	private String ranksDirectory;
+	private BackgroundLibrary library;
+	
+	@Override
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("kea", "");
+		directory.delete();
+		directory.mkdirs();
+		ranksDirectory = System.setProperty(BackgroundRanks.DIRECTORY, directory.getPath());
+		library = TestBackground.library(KEA.KINASE_LEVEL);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		if (ranksDirectory == null)
+			System.clearProperty(BackgroundRanks.DIRECTORY);
+		else
+			System.setProperty(BackgroundRanks.DIRECTORY, ranksDirectory);
+		File results = new File(directory, "results");
+		if (results.exists())
+			for (File file : results.listFiles())
+				file.delete();
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+	
+	// A result scored with rank statistics answers the same list in every other order
+	public void testOrdersShareResult() {
+		ResultCache cache = new ResultCache(16, null);
+		List<String> genes = TestBackground.geneList(library, 100, 7, 3);
+		new EnrichmentEngine(KEA.COMBINED_SCORE, cache).enrich(library, genes);
+		
+		for (String sortBy : new String[] { KEA.PVALUE, KEA.RANK, KEA.COMBINED_SCORE }) {
+			EnrichmentResult cached = new EnrichmentEngine(sortBy, cache).enrich(library, genes);
+			EnrichmentResult scored = new EnrichmentEngine(sortBy).enrich(library, genes);
+			assertEquals(sortBy, cached.getSortBy());
+			assertEquals(scored.getTopRankedList(scored.size()), cached.getTopRankedList(cached.size()));
+			assertEquals(names(scored.getRankedKinases()), names(cached.getRankedKinases()));
+		}
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getMisses());
+		assertEquals(3, cache.getHits());
+	}
+	
+	// Changing the kinases handed out by a cached result leaves the result alone
+	public void testKinasesAreCopies() {
+		ResultCache cache = new ResultCache(16, null);
+		List<String> genes = TestBackground.geneList(library, 100, 7, 3);
+		EnrichmentResult result = new EnrichmentEngine(KEA.PVALUE, cache).enrich(library, genes);
+		Kinase kinase = result.getRankedKinases().get(0);
+		double pvalue = kinase.getPValue();
+		kinase.setPValue(1);
+		kinase.getEnrichedSubstrates().clear();
+		
+		Kinase cached = new EnrichmentEngine(KEA.PVALUE, cache).enrich(library, genes).getRankedKinases().get(0);
+		assertEquals(pvalue, cached.getPValue(), 0);
+		assertFalse(cached.getEnrichedSubstrates().isEmpty());
+		assertEquals(1, cache.getHits());
+	}
+	
+	// The disk tier keeps the most recently used files
+	public void testDiskTierIsBounded() {
+		File results = new File(directory, "results");
+		ResultCache cache = new ResultCache(0, results, 2);
+		EnrichmentEngine engine = new EnrichmentEngine(KEA.PVALUE, cache);
+		for (int seed = 0; seed < 5; seed++)
+			engine.enrich(library, TestBackground.geneList(library, 50, seed));
+		assertEquals(2, results.listFiles().length);
+		assertEquals(3, cache.getDiskEvictions());
+		
+		// The last list is still on disk, the first one is not
+		engine.enrich(library, TestBackground.geneList(library, 50, 4));
+		assertEquals(1, cache.getDiskHits());
+		engine.enrich(library, TestBackground.geneList(library, 50, 0));
+		assertEquals(1, cache.getDiskHits());
+	}
+	
+	private static String names(List<Kinase> kinases) {
+		StringBuilder names = new StringBuilder();
+		for (Kinase kinase : kinases)
+			names.append(kinase.getName()).append(',');
+		return names.toString();
+	}
+}
@@ -0,0 +1,81 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SortedIntersectionTest extends TestCase {
+	
+	private final static int UNIVERSE = 1000;
+	
+	// Merging and galloping count what the bitset AND counts, over sizes from empty to the whole universe
+	public void testKernelsMatchBitset() {
+		Random random = new Random(1);
+		int[] sizes = { 0, 1, 2, 10, 63, 64, 65, 200, 999, UNIVERSE };
+		for (int size1 : sizes) {
+			for (int size2 : sizes) {
+				long[] bits1 = randomSet(random, size1);
+				long[] bits2 = randomSet(random, size2);
+				int expected = bitsetOverlap(bits1, bits2);
+				int[] ids1 = BackgroundLibrary.toIds(bits1, BackgroundLibrary.cardinality(bits1));
+				int[] ids2 = BackgroundLibrary.toIds(bits2, BackgroundLibrary.cardinality(bits2));
+				
+				String sets = size1 + " and " + size2;
+				assertEquals(sets, expected, SortedIntersection.merge(ids1, ids2));
+				assertEquals(sets, expected, SortedIntersection.merge(ids2, ids1));
+				assertEquals(sets, expected, SortedIntersection.gallop(ids1, ids2));
+				assertEquals(sets, expected, SortedIntersection.gallop(ids2, ids1));
+				assertEquals(sets, expected, SortedIntersection.size(ids1, ids2));
+			}
+		}
+	}
+	
+	// Ids at both ends of the universe and sets that only meet at their ends
+	public void testBoundaries() {
+		int[] ends = { 0, UNIVERSE - 1 };
+		int[] all = new int[UNIVERSE];
+		for (int id = 0; id < UNIVERSE; id++)
+			all[id] = id;
+		assertEquals(2, SortedIntersection.gallop(ends, all));
+		assertEquals(2, SortedIntersection.merge(ends, all));
+		
+		int[] low = { 0, 1, 2, 500 };
+		int[] high = { 500, 998, 999 };
+		assertEquals(1, SortedIntersection.gallop(low, high));
+		assertEquals(1, SortedIntersection.gallop(high, low));
+		assertEquals(0, SortedIntersection.gallop(new int[] { 1000 }, all));
+	}
+	
+	// The adaptive overlap of every kinase is the bitset overlap, in a universe sparse enough for the sorted kernels
+	public void testLibraryOverlap() {
+		BackgroundLibrary library = BackgroundLibrary.parse("sparse", KEA.KINASE_LEVEL, TestBackground.records(3, 200, 20000, 6000));
+		Random random = new Random(4);
+		int sorted = 0;
+		for (int size : new int[] { 3, 30, 300, 3000 }) {
+			long[] input = new long[BackgroundLibrary.wordsFor(library.getUniverseSize())];
+			for (int i = 0; i < size; i++)
+				BackgroundLibrary.set(input, random.nextInt(library.getUniverseSize()));
+			int[] inputIds = BackgroundLibrary.toIds(input, BackgroundLibrary.cardinality(input));
+			for (int kinase = 0; kinase < library.size(); kinase++) {
+				assertEquals(library.getKinaseName(kinase), library.overlap(kinase, input), library.overlap(kinase, input, inputIds));
+				if (SortedIntersection.cost(library.getKinaseSize(kinase), inputIds.length) < input.length)
+					sorted++;
+			}
+		}
+		assertTrue(sorted > 0);
+	}
+	
+	private static long[] randomSet(Random random, int size) {
+		long[] bits = new long[BackgroundLibrary.wordsFor(UNIVERSE)];
+		while (BackgroundLibrary.cardinality(bits) < size)
+			BackgroundLibrary.set(bits, random.nextInt(UNIVERSE));
+		return bits;
+	}
+	
+	private static int bitsetOverlap(long[] bits1, long[] bits2) {
+		int count = 0;
+		for (int i = 0; i < bits1.length; i++)
+			count += Long.bitCount(bits1[i] & bits2[i]);
+		return count;
+	}
+}
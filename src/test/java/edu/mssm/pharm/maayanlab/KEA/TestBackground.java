@@ -0,0 +1,62 @@
+package edu.mssm.pharm.maayanlab.KEA;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Small fixed background of group,family,kinase,substrate records with skewed
+ * kinase sizes like the bundled libraries, and gene lists against it.
+ */
+class TestBackground {
+	
+	final static int KINASES = 60;
+	final static int SUBSTRATES = 400;
+	final static int INTERACTIONS = 2500;
+	
+	static ArrayList<String> records(long seed) {
+		return records(seed, KINASES, SUBSTRATES, INTERACTIONS);
+	}
+	
+	static ArrayList<String> records(long seed, int kinases, int substrates, int interactions) {
+		Random random = new Random(seed);
+		ArrayList<String> records = new ArrayList<String>(interactions);
+		for (int i = 0; i < interactions; i++) {
+			int kinase = (int) (kinases * Math.pow(random.nextDouble(), 2));
+			int family = kinase / 4;
+			records.add("GROUP" + (family % 5) + ",FAMILY" + family + ",KINASE" + kinase + ",GENE" + random.nextInt(substrates));
+		}
+		return records;
+	}
+	
+	static BackgroundLibrary library(String level) {
+		return BackgroundLibrary.parse("test", level, records(1));
+	}
+	
+	// Random genes plus a few outside of the background, and part of the substrates of every planted kinase
+	static ArrayList<String> geneList(BackgroundLibrary library, int size, long seed, int... planted) {
+		Random random = new Random(seed);
+		ArrayList<String> genes = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++)
+			genes.add((i % 10 == 9) ? "UNKNOWN" + i : "GENE" + random.nextInt(SUBSTRATES));
+		for (int kinase : planted) {
+			List<String> substrates = new ArrayList<String>(library.getSubstrates(kinase));
+			genes.addAll(substrates.subList(0, (substrates.size() + 1) / 2));
+		}
+		return genes;
+	}
+	
+	static File write(List<String> records, File file) throws IOException {
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+		try {
+			for (String record : records)
+				out.println(record);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}